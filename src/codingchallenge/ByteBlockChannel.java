@@ -0,0 +1,62 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Channel keeping a copy of each block of bytes written to it, in memory
+ * 
+ * @author Shannon
+ *
+ */
+class ByteBlockChannel implements WritableByteChannel {
+    private List<ByteBuffer>    blocks = new ArrayList<ByteBuffer>();
+
+    @Override
+    public int write(ByteBuffer src) {
+        ByteBuffer block = ByteBuffer.allocate(src.remaining());
+        block.put(src);
+        block.flip();
+        blocks.add(block);
+        return block.limit();
+    }
+
+    /**
+     * @return the blocks written, ready to be read
+     */
+    ByteBuffer[] getBlocks() {
+        return blocks.toArray(new ByteBuffer[blocks.size()]);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,157 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Watches the products file and rebuilds the product matcher whenever it changes.
+ * A new matcher is built in the background while the current one keeps serving
+ * matches, then swapped in atomically.  Each matcher carries the catalog version
+ * it was built from, counting up from that of the initial matcher.
+ * 
+ * @author Shannon
+ *
+ */
+public class CatalogWatcher implements Runnable, MatcherSource {
+    /**
+     * Builds a matcher from the current contents of the products file
+     */
+    public interface MatcherFactory {
+        ProductMatcher create(long catalogVersion) throws Exception;
+    }
+
+    /**
+     * How long the file must go without changes before it is reloaded, so a file
+     * being rewritten is not read half way through
+     */
+    private static final long               QUIET_PERIOD_MILLIS = 1000;
+
+    private Path                            productsPath;
+    private MatcherFactory                  factory;
+    private AtomicReference<ProductMatcher> matcher;
+    private volatile boolean                stopped;
+    private Thread                          thread;
+
+    /**
+     * Catalog watcher
+     * @param productsPath the products file
+     * @param factory builds matchers from the products file
+     * @param initialMatcher the matcher to use until the file changes
+     */
+    public CatalogWatcher(Path productsPath, MatcherFactory factory, ProductMatcher initialMatcher) {
+        this.productsPath = productsPath.toAbsolutePath();
+        this.factory = factory;
+        this.matcher = new AtomicReference<ProductMatcher>(initialMatcher);
+    }
+
+    /**
+     * @return the matcher built from the latest successfully loaded catalog
+     */
+    @Override
+    public ProductMatcher getMatcher() {
+        return matcher.get();
+    }
+
+    /**
+     * Starts watching on a background daemon thread
+     */
+    public synchronized void start() {
+        thread = new Thread(this, "catalog-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching.  A rebuild already under way is abandoned.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            WatchService watchService = productsPath.getFileSystem().newWatchService();
+            try {
+                productsPath.getParent().register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                while (!stopped) {
+                    if (!waitForChange(watchService)) {
+                        continue;
+                    }
+                    reload();
+                }
+            } finally {
+                watchService.close();
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (ClosedWatchServiceException e) {
+            // Stopped
+        } catch (IOException e) {
+            System.err.println("Catalog watching stopped: " + e);
+        }
+    }
+
+    /**
+     * Waits for the products file to change, then for it to stay unchanged for the quiet period
+     * @return true if the products file changed
+     */
+    private boolean waitForChange(WatchService watchService) throws InterruptedException {
+        boolean changed = false;
+        WatchKey key = watchService.take();
+        while (key != null) {
+            for (WatchEvent<?> event: key.pollEvents()) {
+                Object context = event.context();
+                if (context instanceof Path && productsPath.getFileName().equals(context)) {
+                    changed = true;
+                }
+            }
+            key.reset();
+            key = changed ? watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS) : null;
+        }
+        return changed;
+    }
+
+    private void reload() {
+        long version = matcher.get().getCatalogVersion() + 1;
+        try {
+            ProductMatcher newMatcher = factory.create(version);
+            if (stopped) {
+                return;
+            }
+            matcher.set(newMatcher);
+            System.err.println("Loaded catalog version " + version + " from " + productsPath);
+        } catch (Exception e) {
+            // Keep matching against the previous catalog, and try again on the next change
+            System.err.println("Failed to load catalog version " + version + " from " + productsPath + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * Opens input files, decompressing those that are gzipped.  Compression is detected
+ * from the gzip magic bytes at the start of the file rather than the file name.
+ * Files of several concatenated gzip members are read as one.
+ * 
+ * @author Shannon
+ *
+ */
+class CompressedInput {
+    private static final int    BUFFER_SIZE = 64 << 10;
+
+    private CompressedInput() {
+    }
+
+    /**
+     * Opens a file, decompressing it if gzipped
+     * @param file the file
+     * @return the file's contents
+     * @throws IOException
+     */
+    static InputStream open(File file) throws IOException {
+        return open(new FileInputStream(file));
+    }
+
+    /**
+     * Opens a stream, decompressing it if gzipped
+     * @param stream the stream, such as standard input or a named pipe
+     * @return the stream's contents
+     * @throws IOException
+     */
+    static InputStream open(InputStream stream) throws IOException {
+        InputStream in = new BufferedInputStream(stream, BUFFER_SIZE);
+        try {
+            if (hasGzipMagic(in)) {
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            }
+            return in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param file a file
+     * @return true if the file is gzipped
+     * @throws IOException
+     */
+    static boolean isGzipped(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 2);
+        try {
+            return hasGzipMagic(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean hasGzipMagic(InputStream in) throws IOException {
+        in.mark(2);
+        int b1 = in.read();
+        int b2 = in.read();
+        in.reset();
+        return b1 == 0x1f && b2 == 0x8b;
+    }
+}
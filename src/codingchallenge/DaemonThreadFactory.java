@@ -0,0 +1,71 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+/**
+ * Creates named daemon threads, which do not keep the application running
+ * 
+ * @author Shannon
+ *
+ */
+class DaemonThreadFactory implements ThreadFactory {
+    private String  namePrefix;
+    private int     count;
+
+    /**
+     * Daemon thread factory
+     * @param namePrefix the thread names' prefix, followed by a sequence number
+     */
+    DaemonThreadFactory(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    /**
+     * @param namePrefix the thread names' prefix, when virtual threads are not available
+     * @return an executor running each task on a new virtual thread, if the JDK has
+     * them, or else on a cached pool of daemon threads
+     */
+    static ExecutorService newPerTaskExecutor(String namePrefix) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            // Before virtual threads
+        } catch (InvocationTargetException e) {
+            // Virtual threads in preview, and not enabled
+        } catch (IllegalAccessException e) {
+            // Not expected for a public method
+        }
+        return Executors.newCachedThreadPool(new DaemonThreadFactory(namePrefix));
+    }
+
+    @Override
+    public synchronized Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, namePrefix + count++);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
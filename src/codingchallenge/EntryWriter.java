@@ -0,0 +1,75 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+
+/**
+ * Writes the output, one entry per product with its listings
+ * 
+ * @author Shannon
+ *
+ */
+interface EntryWriter extends Closeable {
+    /**
+     * Starts a product's entry
+     * @param product the product
+     * @throws IOException
+     */
+    void beginEntry(Product product) throws IOException;
+
+    /**
+     * Starts the next listing of the current entry
+     * @param catalogVersion the version of the catalog that matched the listing, 0 if not tracked
+     * @return the stream to write the listing's raw line to
+     * @throws IOException
+     */
+    OutputStream nextListing(long catalogVersion) throws IOException;
+
+    /**
+     * Ends the current entry
+     * @throws IOException
+     */
+    void endEntry() throws IOException;
+
+    /**
+     * Creates a chunk: a writer of the same kind that serializes entries into memory,
+     * to be written later by {@link #writeChunk(EntryWriter)}.  Chunks can be created
+     * and written to from other threads.
+     * @return the chunk
+     */
+    EntryWriter newChunk();
+
+    /**
+     * Writes the entries serialized into a chunk, after those written so far
+     * @param chunk a chunk created by this writer, no longer written to
+     * @throws IOException
+     */
+    void writeChunk(EntryWriter chunk) throws IOException;
+
+    /**
+     * Flushes the written entries through to the output
+     * @throws IOException
+     */
+    void flush() throws IOException;
+}
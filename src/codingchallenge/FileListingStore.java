@@ -0,0 +1,126 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Keeps only the file offset and length of each listing line, and reads the line
+ * back from the listings file when it is output.  Memory then grows with the number
+ * of matches rather than the size of the listings.
+ * <p>
+ * Ids are handed out in the order lines are added.  As listings are aggregated in
+ * input order, each product's ids, and so its file offsets, are increasing, and
+ * reading a product's listings back moves forward through the file.  Lines may be
+ * read back from several threads at once, as positional reads share no file position.
+ * 
+ * @author Shannon
+ *
+ */
+class FileListingStore implements ListingStore {
+    private Path            path;
+    private FileChannel     channel;
+    private LongList        offsets = new LongList(1024);
+    private IntList         lengths = new IntList(1024);
+    private ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(64 << 10);
+        }
+    };
+
+    /**
+     * File listing store
+     * @param path the listings file
+     */
+    FileListingStore(Path path) {
+        this.path = path;
+    }
+
+    @Override
+    public boolean needsLineBytes() {
+        return false;
+    }
+
+    @Override
+    public int add(byte[] line, long offset, int length) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Listing offset unknown");
+        }
+        offsets.add(offset);
+        lengths.add(length);
+        return offsets.size() - 1;
+    }
+
+    @Override
+    public void writeTo(int id, OutputStream out) throws IOException {
+        writeRange(offsets.get(id), lengths.get(id), out);
+    }
+
+    /**
+     * Reads a line back from the listings file
+     * @param position the file offset of the line
+     * @param length the length of the line in bytes
+     * @param out where to write the line
+     * @throws IOException
+     */
+    void writeRange(long position, int length, OutputStream out) throws IOException {
+        FileChannel channel = openChannel();
+        ByteBuffer buffer = buffers.get();
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(length);
+            buffers.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Listings file " + path + " shorter than when read");
+            }
+        }
+        out.write(buffer.array(), 0, length);
+    }
+
+    private synchronized FileChannel openChannel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+        return channel;
+    }
+
+    @Override
+    public void clear() {
+        offsets = new LongList(1024);
+        lengths = new IntList(1024);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Channel gzipping what is written to it on several threads, like pigz.  Bytes are
+ * gathered into blocks, and each block is compressed as a gzip member of its own by
+ * an executor thread.  The members are written to the underlying channel in block
+ * order; concatenated, they form one gzip stream that any gunzip reads.  A few blocks
+ * are compressed ahead of the one being written, which bounds memory.
+ * 
+ * @author Shannon
+ *
+ */
+class GzipMemberChannel implements WritableByteChannel {
+    private static final int    BLOCK_SIZE = 1 << 20;
+
+    private WritableByteChannel     out;
+    private ExecutorService         executor;
+    private int                     maxPending;
+    private Deque<Future<ByteBuffer>> pending = new ArrayDeque<Future<ByteBuffer>>();
+    private byte[]                  block = new byte[BLOCK_SIZE];
+    private int                     blockUsed;
+    private int                     memberCount;
+    private boolean                 open = true;
+
+    /**
+     * Gzip member channel
+     * @param out where to write the compressed members
+     * @param executor the threads compressing blocks
+     * @param maxPending the most blocks compressed at a time
+     */
+    GzipMemberChannel(WritableByteChannel out, ExecutorService executor, int maxPending) {
+        this.out = out;
+        this.executor = executor;
+        this.maxPending = maxPending;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            int length = Math.min(src.remaining(), block.length - blockUsed);
+            src.get(block, blockUsed, length);
+            blockUsed += length;
+            if (blockUsed == block.length) {
+                submitBlock();
+            }
+        }
+        return written;
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] bytes = block;
+        final int length = blockUsed;
+        pending.add(executor.submit(new Callable<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() throws IOException {
+                return compress(bytes, length);
+            }
+        }));
+        block = new byte[BLOCK_SIZE];
+        blockUsed = 0;
+        memberCount++;
+        while (pending.size() >= maxPending) {
+            writeMember(pending.removeFirst());
+        }
+    }
+
+    private static ByteBuffer compress(byte[] bytes, int length) throws IOException {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length / 3 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(member, 64 << 10);
+        try {
+            gzip.write(bytes, 0, length);
+        } finally {
+            gzip.close();
+        }
+        return ByteBuffer.wrap(member.toByteArray());
+    }
+
+    private void writeMember(Future<ByteBuffer> future) throws IOException {
+        ByteBuffer member;
+        try {
+            member = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted compressing output");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+        while (member.hasRemaining()) {
+            out.write(member);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Compresses the last block, writes all the members, and closes the underlying channel
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            if (blockUsed > 0 || memberCount == 0) {
+                // Even empty output is written as a gzip member, to be a valid gzip file
+                submitBlock();
+            }
+            while (!pending.isEmpty()) {
+                writeMember(pending.removeFirst());
+            }
+        } finally {
+            for (Future<ByteBuffer> future: pending) {
+                future.cancel(true);
+            }
+            out.close();
+        }
+    }
+}
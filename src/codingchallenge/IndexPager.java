@@ -0,0 +1,189 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Keeps the estimated size of resident manufacturer indexes within a memory budget.
+ * Each index is written to a page file in the pager's directory when first built.
+ * When admitting an index takes the resident total over budget, the least recently
+ * used indexes are evicted, to be read back from their page files when next needed.
+ * 
+ * @author Shannon
+ *
+ */
+public class IndexPager {
+    /**
+     * An index that can be dropped from memory and later reloaded
+     */
+    public interface Page {
+        /**
+         * Drops the index from memory
+         */
+        void evict();
+    }
+
+    private long                    memoryBudget;
+    private File                    directory;
+    private LinkedHashMap<Page,Long> residentPages = new LinkedHashMap<Page,Long>(16, 0.75f, true);
+    private long                    residentSize;
+    private AtomicLong              buildCount = new AtomicLong();
+    private AtomicLong              loadCount = new AtomicLong();
+    private AtomicLong              loadNanos = new AtomicLong();
+    private AtomicLong              maxLoadNanos = new AtomicLong();
+    private AtomicLong              evictionCount = new AtomicLong();
+
+    /**
+     * Index pager
+     * @param memoryBudget the estimated size in bytes above which indexes are evicted
+     * @param directory where page files are written, created if need be
+     * @throws IOException if the directory cannot be created
+     */
+    public IndexPager(long memoryBudget, File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create index directory " + directory);
+        }
+        this.memoryBudget = memoryBudget;
+        this.directory = directory;
+    }
+
+    /**
+     * @return a new page file, deleted when the JVM exits
+     * @throws IOException
+     */
+    public File createPageFile() throws IOException {
+        File file = File.createTempFile("index", ".page", directory);
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Marks a resident page as the most recently used
+     */
+    public void touch(Page page) {
+        synchronized (residentPages) {
+            residentPages.get(page);
+        }
+    }
+
+    /**
+     * Adds a page just built or loaded to the resident pages, evicting the least
+     * recently used others while the resident size is over budget
+     * @param page the page
+     * @param size the page's estimated size in bytes
+     */
+    public void admit(Page page, long size) {
+        List<Page> victims = new ArrayList<Page>();
+        synchronized (residentPages) {
+            Long previous = residentPages.put(page, size);
+            residentSize += size - (previous == null ? 0 : previous);
+            Iterator<Map.Entry<Page,Long>> it = residentPages.entrySet().iterator();
+            while (residentSize > memoryBudget && it.hasNext()) {
+                Map.Entry<Page,Long> eldest = it.next();
+                if (eldest.getKey() == page) {
+                    continue;
+                }
+                residentSize -= eldest.getValue();
+                victims.add(eldest.getKey());
+                it.remove();
+            }
+        }
+        // Evicted outside the pager lock, as pages take their own lock to evict
+        for (Page victim: victims) {
+            victim.evict();
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    void recordBuild() {
+        buildCount.incrementAndGet();
+    }
+
+    void recordLoad(long nanos) {
+        loadCount.incrementAndGet();
+        loadNanos.addAndGet(nanos);
+        long max = maxLoadNanos.get();
+        while (nanos > max && !maxLoadNanos.compareAndSet(max, nanos)) {
+            max = maxLoadNanos.get();
+        }
+    }
+
+    public long getBuildCount() {
+        return buildCount.get();
+    }
+
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * @return the mean time taken to reload an index from its page file, in milliseconds
+     */
+    public double getMeanLoadMillis() {
+        long loads = loadCount.get();
+        return loads == 0 ? 0.0 : loadNanos.get() / 1e6 / loads;
+    }
+
+    /**
+     * @return the longest time taken to reload an index from its page file, in milliseconds
+     */
+    public double getMaxLoadMillis() {
+        return maxLoadNanos.get() / 1e6;
+    }
+
+    /**
+     * @return the estimated size of the resident indexes, in bytes
+     */
+    public long getResidentSize() {
+        synchronized (residentPages) {
+            return residentSize;
+        }
+    }
+
+    /**
+     * Shares the build, load and eviction counts of a pager this one replaces.  The
+     * resident size stays this pager's own.
+     * @param previous the replaced pager
+     */
+    public void continueStatistics(IndexPager previous) {
+        buildCount = previous.buildCount;
+        loadCount = previous.loadCount;
+        loadNanos = previous.loadNanos;
+        maxLoadNanos = previous.maxLoadNanos;
+        evictionCount = previous.evictionCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("index pager: %d builds, %d loads (mean %.2f ms, max %.2f ms), %d evictions, %d of %d bytes resident",
+                getBuildCount(), getLoadCount(), getMeanLoadMillis(), getMaxLoadMillis(), getEvictionCount(),
+                getResidentSize(), memoryBudget);
+    }
+}
@@ -0,0 +1,259 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Output stream that encodes JSON straight into one large reusable byte buffer,
+ * and writes the buffer to a channel in large blocks.  Strings are escaped and
+ * encoded to UTF-8 in a single pass, with no intermediate String or char array.
+ * Escaping is the same as {@link org.json.JSONObject#quote(String)}, so output is
+ * unchanged.  Not thread-safe.
+ * 
+ * @author Shannon
+ *
+ */
+class JsonOutputSink extends OutputStream {
+    private static final int        BUFFER_SIZE = 1 << 20;
+    // Limit on buffers per gathering write; some platforms take no more than 1024
+    private static final int        MAX_GATHER = 1024;
+    private static final byte[]     HEX_DIGITS = "0123456789abcdef".getBytes();
+
+    private WritableByteChannel     channel;
+    private byte[]                  buffer;
+    private ByteBuffer              wrapped;
+    private int                     count;
+
+    /**
+     * JSON output sink
+     * @param channel where to write the output
+     */
+    JsonOutputSink(WritableByteChannel channel) {
+        this(channel, BUFFER_SIZE);
+    }
+
+    /**
+     * JSON output sink
+     * @param channel where to write the output
+     * @param bufferSize the size of the buffer, and so of the blocks written
+     */
+    JsonOutputSink(WritableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        buffer = new byte[bufferSize];
+        wrapped = ByteBuffer.wrap(buffer);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            drain();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length > buffer.length - count) {
+            drain();
+            if (length > buffer.length) {
+                writeFully(ByteBuffer.wrap(bytes, offset, length));
+                return;
+            }
+        }
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+    }
+
+    /**
+     * Writes a string known to be ASCII, such as JSON punctuation and keys
+     * @param s the string
+     * @throws IOException
+     */
+    void writeAscii(String s) throws IOException {
+        int length = s.length();
+        if (length > buffer.length - count) {
+            drain();
+        }
+        for (int i = 0; i < length; i++) {
+            if (count == buffer.length) {
+                drain();
+            }
+            buffer[count++] = (byte) s.charAt(i);
+        }
+    }
+
+    /**
+     * Writes a number
+     * @param value the number
+     * @throws IOException
+     */
+    void writeLong(long value) throws IOException {
+        writeAscii(Long.toString(value));
+    }
+
+    /**
+     * Writes a quoted and escaped JSON string, encoded to UTF-8
+     * @param s the string; null is written as an empty string
+     * @throws IOException
+     */
+    void writeJsonString(String s) throws IOException {
+        if (count > buffer.length - 16) {
+            drain();
+        }
+        buffer[count++] = '"';
+        int length = s != null ? s.length() : 0;
+        char c = 0;
+        for (int i = 0; i < length; i++) {
+            // At most 12 bytes per char, with the closing quote
+            if (count > buffer.length - 13) {
+                drain();
+            }
+            char previous = c;
+            c = s.charAt(i);
+            switch (c) {
+            case '\\':
+            case '"':
+                buffer[count++] = '\\';
+                buffer[count++] = (byte) c;
+                break;
+            case '/':
+                if (previous == '<') {
+                    buffer[count++] = '\\';
+                }
+                buffer[count++] = '/';
+                break;
+            case '\b':
+                writeEscape('b');
+                break;
+            case '\t':
+                writeEscape('t');
+                break;
+            case '\n':
+                writeEscape('n');
+                break;
+            case '\f':
+                writeEscape('f');
+                break;
+            case '\r':
+                writeEscape('r');
+                break;
+            default:
+                if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+                    writeUnicodeEscape(c);
+                } else if (c < 0x80) {
+                    buffer[count++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[count++] = (byte) (0xc0 | (c >> 6));
+                    buffer[count++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+                    buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired surrogate: replaced, as String.getBytes() does
+                    buffer[count++] = '?';
+                } else {
+                    buffer[count++] = (byte) (0xe0 | (c >> 12));
+                    buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buffer[count++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+        buffer[count++] = '"';
+    }
+
+    private void writeEscape(char c) {
+        buffer[count++] = '\\';
+        buffer[count++] = (byte) c;
+    }
+
+    private void writeUnicodeEscape(char c) {
+        buffer[count++] = '\\';
+        buffer[count++] = 'u';
+        buffer[count++] = HEX_DIGITS[(c >> 12) & 0xf];
+        buffer[count++] = HEX_DIGITS[(c >> 8) & 0xf];
+        buffer[count++] = HEX_DIGITS[(c >> 4) & 0xf];
+        buffer[count++] = HEX_DIGITS[c & 0xf];
+    }
+
+    /**
+     * Writes blocks of bytes after what has been written so far, with gathering
+     * writes if the channel supports them
+     * @param blocks the blocks to write
+     * @throws IOException
+     */
+    void writeBlocks(ByteBuffer[] blocks) throws IOException {
+        drain();
+        if (!(channel instanceof GatheringByteChannel)) {
+            for (ByteBuffer block: blocks) {
+                writeFully(block);
+            }
+            return;
+        }
+        GatheringByteChannel gatheringChannel = (GatheringByteChannel) channel;
+        int first = 0;
+        while (first < blocks.length) {
+            gatheringChannel.write(blocks, first, Math.min(blocks.length - first, MAX_GATHER));
+            while (first < blocks.length && !blocks[first].hasRemaining()) {
+                first++;
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the channel
+     */
+    private void drain() throws IOException {
+        if (count > 0) {
+            wrapped.clear();
+            wrapped.limit(count);
+            writeFully(wrapped);
+            count = 0;
+        }
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+}
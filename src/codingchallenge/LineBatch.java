@@ -0,0 +1,98 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.util.*;
+
+/**
+ * A batch of input lines, each with the position of its bytes in the input file
+ * when known
+ * 
+ * @author Shannon
+ *
+ */
+class LineBatch {
+    private List<String>    lines;
+    private long[]          offsets;
+    private int[]           lengths;
+    private String          sourceName;
+
+    LineBatch(int capacity) {
+        lines = new ArrayList<String>(capacity);
+        offsets = new long[capacity];
+        lengths = new int[capacity];
+    }
+
+    /**
+     * Adds a line
+     * @param line the line
+     * @param offset the file offset of the line's first byte, or -1 if unknown
+     * @param length the length of the line in bytes
+     */
+    void add(String line, long offset, int length) {
+        if (lines.size() == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * offsets.length + 1);
+            lengths = Arrays.copyOf(lengths, 2 * lengths.length + 1);
+        }
+        offsets[lines.size()] = offset;
+        lengths[lines.size()] = length;
+        lines.add(line);
+    }
+
+    /**
+     * @return the name of the file the lines were read from, or null if not named
+     */
+    String getSourceName() {
+        return sourceName;
+    }
+
+    void setSourceName(String sourceName) {
+        this.sourceName = sourceName;
+    }
+
+    int size() {
+        return lines.size();
+    }
+
+    boolean isEmpty() {
+        return lines.isEmpty();
+    }
+
+    List<String> getLines() {
+        return lines;
+    }
+
+    /**
+     * @return the file offset of the line's first byte, or -1 if unknown
+     */
+    long getOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * @return the length of the line in bytes, if its offset is known
+     */
+    int getLength(int index) {
+        return lengths[index];
+    }
+}
@@ -0,0 +1,119 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Append-only store of byte strings, such as the raw lines of listings.  The
+ * strings are packed one after the other into large slabs, and located by an
+ * offset and length per string, so each costs little more than its bytes.
+ * Not thread-safe while strings are added; once they are, they can be written
+ * from several threads at once.
+ * 
+ * @author Shannon
+ *
+ */
+class ListingArena implements ListingStore {
+    private static final int    SLAB_SIZE = 1 << 20;
+
+    private List<byte[]>        slabs = new ArrayList<byte[]>();
+    private byte[]              slab;
+    private int                 slabUsed;
+    private long[]              offsets = new long[1024];
+    private int[]               lengths = new int[1024];
+    private int                 count;
+
+    @Override
+    public boolean needsLineBytes() {
+        return true;
+    }
+
+    @Override
+    public int add(byte[] line, long offset, int length) {
+        return append(line);
+    }
+
+    /**
+     * Appends a byte string
+     * @param bytes the bytes to append
+     * @return the id of the appended string, its position in the arena
+     */
+    int append(byte[] bytes) {
+        if (slab == null || slabUsed + bytes.length > slab.length) {
+            // Strings larger than a slab get a slab of their own
+            slab = new byte[Math.max(SLAB_SIZE, bytes.length)];
+            slabs.add(slab);
+            slabUsed = 0;
+        }
+        System.arraycopy(bytes, 0, slab, slabUsed, bytes.length);
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+        }
+        offsets[count] = ((long) (slabs.size() - 1) << 32) | slabUsed;
+        lengths[count] = bytes.length;
+        slabUsed += bytes.length;
+        return count++;
+    }
+
+    /**
+     * Writes a stored byte string
+     * @param id the id of the string
+     * @param out where to write the string
+     * @throws IOException
+     */
+    public void writeTo(int id, OutputStream out) throws IOException {
+        long offset = offsets[id];
+        out.write(slabs.get((int) (offset >>> 32)), (int) offset, lengths[id]);
+    }
+
+    /**
+     * @param id the id of a stored string
+     * @return the length of the string in bytes
+     */
+    int length(int id) {
+        return lengths[id];
+    }
+
+    /**
+     * @return the number of stored strings
+     */
+    int size() {
+        return count;
+    }
+
+    @Override
+    public void clear() {
+        slabs.clear();
+        slab = null;
+        count = 0;
+    }
+
+    @Override
+    public void close() {
+        slabs.clear();
+        slab = null;
+    }
+}
@@ -0,0 +1,208 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Listings given as several files: expands the listings arguments into files, and
+ * reads each file as a batch source of its own
+ * 
+ * @author Shannon
+ *
+ */
+class ListingFiles {
+    private static final Charset    UTF_8 = Charset.forName("UTF-8");
+
+    private ListingFiles() {
+    }
+
+    /**
+     * Expands listings arguments into files.  An argument may be a file, a directory,
+     * standing for the files in it, or a glob in its last path element, such as
+     * <code>shards/listings-*.json</code>.  Files found in directories and by globs
+     * are taken in name order, skipping hidden files.
+     * <p>
+     * Every argument is checked before any listings are read, so that a missing
+     * file fails the run at once rather than after the files before it are matched.
+     * @param args the listings arguments
+     * @return the files, in argument order
+     * @throws FileNotFoundException if any argument is missing, unreadable or matches
+     * no files, with one line per such argument
+     */
+    static List<File> expand(List<String> args) throws FileNotFoundException {
+        List<File> files = new ArrayList<File>();
+        StringBuilder errors = new StringBuilder();
+        for (String arg: args) {
+            File file = new File(arg);
+            String error = null;
+            try {
+                if (file.isDirectory()) {
+                    files.addAll(list(file, null));
+                } else if (!file.exists() && isGlob(file.getName())) {
+                    File directory = file.getParentFile() != null ? file.getParentFile() : new File(".");
+                    PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + file.getName());
+                    List<File> matches = list(directory, matcher);
+                    if (matches.isEmpty()) {
+                        error = "No listings files match " + arg;
+                    }
+                    files.addAll(matches);
+                } else if (!file.exists()) {
+                    error = "Listings file not found: " + arg;
+                } else if (!file.isFile() || !file.canRead()) {
+                    error = "Cannot read listings file: " + arg;
+                } else {
+                    files.add(file);
+                }
+            } catch (IOException e) {
+                error = e.getMessage();
+            }
+            if (error != null) {
+                errors.append(errors.length() > 0 ? "\n" : "").append(error);
+            }
+        }
+        if (errors.length() > 0) {
+            throw new FileNotFoundException(errors.toString());
+        }
+        return files;
+    }
+
+    private static boolean isGlob(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if ("*?[{".indexOf(name.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<File> list(File directory, PathMatcher matcher) throws IOException {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            throw new IOException("Cannot list listings directory " + directory);
+        }
+        List<File> files = new ArrayList<File>();
+        for (File child: children) {
+            if (child.isFile() && !child.isHidden() && !child.getName().startsWith(".")
+                    && (matcher == null || matcher.matches(Paths.get(child.getName())))) {
+                files.add(child);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Batch source reading a listings file, opened on the first batch and closed at
+     * the end.  Batches are tagged with the file name, and reading errors name the
+     * file.  Reports each file read to standard error.  A byte range of an
+     * uncompressed file may be read instead of the whole file, the batches then
+     * giving the file offset of each line.
+     */
+    static class Source implements ListingPipeline.BatchSource, Closeable {
+        private File                        file;
+        private int                         batchSize;
+        private long                        start;
+        private long                        end = -1;
+        private Closeable                   input;
+        private ListingPipeline.BatchSource batches;
+        private long                        listingCount;
+        private long                        startNanos;
+
+        Source(File file, int batchSize) {
+            this.file = file;
+            this.batchSize = batchSize;
+        }
+
+        /**
+         * Source reading part of a file
+         * @param file the listings file, not compressed
+         * @param batchSize the largest number of lines in a batch
+         * @param start the offset of the first line read
+         * @param end the offset after the last line read
+         */
+        Source(File file, int batchSize, long start, long end) {
+            this(file, batchSize);
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public LineBatch nextBatch() throws IOException {
+            if (batches == null) {
+                startNanos = System.nanoTime();
+                if (end < 0) {
+                    Reader reader = new InputStreamReader(CompressedInput.open(file), UTF_8);
+                    input = reader;
+                    batches = ListingPipeline.batches(new StreamLineReader(reader), batchSize, file.getPath());
+                } else {
+                    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    input = channel;
+                    channel.position(start);
+                    InputStream in = new FilterInputStream(Channels.newInputStream(channel)) {
+                        private long remaining = end - start;
+
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            if (remaining <= 0) {
+                                return -1;
+                            }
+                            int count = super.read(b, off, (int) Math.min(len, remaining));
+                            if (count > 0) {
+                                remaining -= count;
+                            }
+                            return count;
+                        }
+                    };
+                    batches = ListingPipeline.batches(new OffsetLineReader(in, start), batchSize, file.getPath());
+                }
+            }
+            LineBatch batch;
+            try {
+                batch = batches.nextBatch();
+            } catch (IOException e) {
+                throw new IOException("Error reading " + file + ": " + e.getMessage(), e);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            if (batch == null) {
+                System.err.println(String.format("Read %s: %d listings in %.1f s", file, listingCount,
+                        (System.nanoTime() - startNanos) / 1e9));
+            } else {
+                listingCount += batch.size();
+            }
+            return batch;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (input != null) {
+                input.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,565 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs batches of listing lines through three stages: a reader thread producing
+ * batches, worker threads matching them, and an aggregator, the calling thread,
+ * consuming the matched batches.  The stages are joined by bounded queues, so a
+ * slow stage holds back those before it.  Matched batches are handed to the
+ * aggregator in the order they were read, so the aggregate is the same whatever
+ * the number of workers.  The reader also takes a permit per batch, given back as
+ * the aggregator takes the batch, so that batches matched ahead of a slow one
+ * cannot pile up waiting for their turn.
+ * <p>
+ * Input already split into partitions, such as the line aligned ranges of a
+ * {@link MappedListingsFile}, is instead read by the workers themselves, each
+ * taking the next partition in order when done with its last.  The aggregator then
+ * takes all the batches of the first partition, in order, followed by those of the
+ * second, and so on.  As with files, a partition reads only a few batches ahead of
+ * the aggregator, and only a few partitions per worker are under way at a time, so
+ * input should be split into many more partitions than there are workers.
+ * <p>
+ * Input from several files is read by a reader per file, on virtual threads when
+ * the JDK has them, all feeding the shared workers.  The aggregator again takes the
+ * files' batches file by file.  So that memory stays bounded however many files
+ * there are, only a few files are open at a time, opened in order, and each file
+ * reads only a few batches ahead of the aggregator.
+ * <p>
+ * With a single worker, all stages run on the calling thread.
+ * 
+ * @author Shannon
+ *
+ * @param <T> the matched batch type
+ */
+class ListingPipeline<T> {
+    /**
+     * Produces batches of input lines
+     */
+    interface BatchSource {
+        /**
+         * @return the next batch of non-blank, trimmed lines, or null at the end of input
+         */
+        LineBatch nextBatch() throws Exception;
+    }
+
+    /**
+     * Matches a batch of lines.  Called concurrently from several workers.
+     */
+    interface BatchMatcher<T> {
+        T match(LineBatch lines) throws Exception;
+    }
+
+    /**
+     * Consumes matched batches, in input order
+     */
+    interface BatchAggregator<T> {
+        void aggregate(T batch) throws Exception;
+    }
+
+    /**
+     * Splits the lines of a reader into batches, trimming lines and skipping blank ones
+     * @param reader the line reader
+     * @param batchSize the largest number of lines in a batch
+     * @return the batch source
+     */
+    static BatchSource batches(LineReader reader, int batchSize) {
+        return batches(reader, batchSize, null);
+    }
+
+    /**
+     * Splits the lines of a reader into batches, trimming lines and skipping blank ones
+     * @param reader the line reader
+     * @param batchSize the largest number of lines in a batch
+     * @param sourceName the name of the file read, given to each batch
+     * @return the batch source
+     */
+    static BatchSource batches(final LineReader reader, final int batchSize, final String sourceName) {
+        return new BatchSource() {
+            @Override
+            public LineBatch nextBatch() throws IOException {
+                LineBatch batch = new LineBatch(batchSize);
+                batch.setSourceName(sourceName);
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    int start = 0;
+                    int end = line.length();
+                    while (start < end && line.charAt(start) <= ' ') {
+                        start++;
+                    }
+                    while (end > start && line.charAt(end - 1) <= ' ') {
+                        end--;
+                    }
+                    if (start == end) {
+                        continue;
+                    }
+                    // Trimmed characters are single byte in UTF-8
+                    long offset = reader.getLineOffset();
+                    int length = reader.getLineLength() - start - (line.length() - end);
+                    batch.add(line.substring(start, end), offset < 0 ? -1 : offset + start, length);
+                    if (batch.size() == batchSize) {
+                        break;
+                    }
+                }
+                return batch.isEmpty() ? null : batch;
+            }
+        };
+    }
+
+    /**
+     * Files read at once, per worker
+     */
+    private static final int                OPEN_FILES_PER_WORKER = 4;
+
+    /**
+     * Partitions under way at once, per worker
+     */
+    private static final int                PARTITIONS_AHEAD_PER_WORKER = 2;
+
+    /**
+     * Batches each file or partition reads ahead of the aggregator
+     */
+    private static final int                FILE_BATCHES_AHEAD = 4;
+
+    private int                             workerCount;
+    private int                             queueCapacity;
+    private BlockingQueue<Sequenced<LineBatch>> lineBatches;
+    private BlockingQueue<Sequenced<?>>     matchedBatches;
+    private List<BlockingQueue<Sequenced<?>>> fileBatches;
+    private Semaphore[]                     fileBatchPermits;
+    private Semaphore                       partitionsAhead;
+    private Semaphore                       batchesAhead;
+    private volatile Throwable              failure;
+
+    /**
+     * Listing pipeline
+     * @param workerCount the number of matching threads
+     * @param queueCapacity the number of batches each queue holds before blocking
+     */
+    ListingPipeline(int workerCount, int queueCapacity) {
+        this.workerCount = workerCount;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Runs the pipeline to the end of input
+     * @throws Exception the first failure of any stage
+     */
+    void run(BatchSource source, BatchMatcher<T> matcher, BatchAggregator<T> aggregator) throws Exception {
+        if (workerCount <= 1) {
+            runInline(source, matcher, aggregator);
+            return;
+        }
+        lineBatches = new ArrayBlockingQueue<Sequenced<LineBatch>>(queueCapacity);
+        matchedBatches = new ArrayBlockingQueue<Sequenced<?>>(queueCapacity);
+        // As many batches as fill the queues and workers
+        batchesAhead = new Semaphore(2 * queueCapacity + workerCount);
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(new Thread(new Reader(source), "listing-reader"));
+        for (int i = 0; i < workerCount; i++) {
+            threads.add(new Thread(new Worker(matcher), "listing-matcher-" + i));
+        }
+        runThreads(threads, aggregator);
+    }
+
+    /**
+     * Runs the pipeline over input split into partitions, each read and matched by
+     * whichever worker takes it
+     * @throws Exception the first failure of any stage
+     */
+    void run(List<BatchSource> partitions, BatchMatcher<T> matcher, BatchAggregator<T> aggregator) throws Exception {
+        if (workerCount <= 1 || partitions.size() <= 1) {
+            for (BatchSource source: partitions) {
+                runInline(source, matcher, aggregator);
+            }
+            return;
+        }
+        createFileQueues(partitions.size());
+        partitionsAhead = new Semaphore(PARTITIONS_AHEAD_PER_WORKER * workerCount);
+        AtomicInteger nextPartition = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < workerCount; i++) {
+            threads.add(new Thread(new PartitionWorker(partitions, nextPartition, matcher), "listing-matcher-" + i));
+        }
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        try {
+            aggregateFiles(partitions.size(), aggregator);
+        } finally {
+            for (Thread thread: threads) {
+                thread.interrupt();
+            }
+            for (Thread thread: threads) {
+                thread.join();
+            }
+        }
+    }
+
+    /**
+     * Runs the pipeline over several files, each read by a reader of its own.  A
+     * source is read only once its file's turn to be opened comes; a source that is
+     * {@link Closeable} is closed once read.
+     * @throws Exception the first failure of any stage
+     */
+    void runFiles(List<BatchSource> files, BatchMatcher<T> matcher, BatchAggregator<T> aggregator) throws Exception {
+        if (workerCount <= 1) {
+            for (BatchSource source: files) {
+                try {
+                    runInline(source, matcher, aggregator);
+                } finally {
+                    closeSource(source);
+                }
+            }
+            return;
+        }
+        lineBatches = new ArrayBlockingQueue<Sequenced<LineBatch>>(queueCapacity);
+        createFileQueues(files.size());
+        ExecutorService readers = DaemonThreadFactory.newPerTaskExecutor("listing-file-reader-");
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(new Thread(new FileLauncher(files, readers), "listing-file-launcher"));
+        for (int i = 0; i < workerCount; i++) {
+            threads.add(new Thread(new Worker(matcher), "listing-matcher-" + i));
+        }
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        try {
+            aggregateFiles(files.size(), aggregator);
+        } finally {
+            for (Thread thread: threads) {
+                thread.interrupt();
+            }
+            readers.shutdownNow();
+            for (Thread thread: threads) {
+                thread.join();
+            }
+            readers.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Creates the queue of matched batches of each file or partition, and the permits
+     * limiting how far it reads ahead
+     */
+    private void createFileQueues(int count) {
+        fileBatches = new ArrayList<BlockingQueue<Sequenced<?>>>(count);
+        fileBatchPermits = new Semaphore[count];
+        for (int i = 0; i < count; i++) {
+            // Bounded by the permits rather than the queue, so workers never wait on it
+            fileBatches.add(new LinkedBlockingQueue<Sequenced<?>>());
+            fileBatchPermits[i] = new Semaphore(FILE_BATCHES_AHEAD);
+        }
+    }
+
+    private void runInline(BatchSource source, BatchMatcher<T> matcher, BatchAggregator<T> aggregator) throws Exception {
+        for (LineBatch lines = source.nextBatch(); lines != null; lines = source.nextBatch()) {
+            aggregator.aggregate(matcher.match(lines));
+        }
+    }
+
+    private void runThreads(List<Thread> threads, BatchAggregator<T> aggregator) throws Exception {
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        try {
+            aggregate(aggregator);
+        } finally {
+            for (Thread thread: threads) {
+                thread.interrupt();
+            }
+            for (Thread thread: threads) {
+                thread.join();
+            }
+        }
+    }
+
+    /**
+     * Hands matched batches to the aggregator in sequence, holding back those
+     * arriving ahead of their turn.  The reader's permits bound the batches read and
+     * not yet aggregated, and so the batches held back.  The end of input is marked
+     * by a batch without a value, whose sequence number is the batch count.
+     */
+    @SuppressWarnings("unchecked")
+    private void aggregate(BatchAggregator<T> aggregator) throws Exception {
+        Map<Long,Sequenced<?>> early = new HashMap<Long,Sequenced<?>>();
+        long next = 0;
+        boolean ended = false;
+        while (!ended) {
+            Sequenced<?> batch = matchedBatches.take();
+            if (failure != null) {
+                rethrow(failure);
+            }
+            early.put(batch.seq, batch);
+            for (Sequenced<?> ready = early.remove(next); ready != null && !ended; ready = early.remove(next)) {
+                if (ready.value == null) {
+                    ended = true;
+                } else {
+                    aggregator.aggregate((T) ready.value);
+                    batchesAhead.release();
+                    next++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands each file's matched batches to the aggregator in sequence, file by file,
+     * letting the file read further ahead as each batch is taken
+     */
+    @SuppressWarnings("unchecked")
+    private void aggregateFiles(int fileCount, BatchAggregator<T> aggregator) throws Exception {
+        for (int file = 0; file < fileCount; file++) {
+            BlockingQueue<Sequenced<?>> batches = fileBatches.get(file);
+            Map<Long,Sequenced<?>> early = new HashMap<Long,Sequenced<?>>();
+            long next = 0;
+            boolean ended = false;
+            while (!ended) {
+                Sequenced<?> batch = batches.take();
+                if (failure != null) {
+                    rethrow(failure);
+                }
+                early.put(batch.seq, batch);
+                for (Sequenced<?> ready = early.remove(next); ready != null && !ended; ready = early.remove(next)) {
+                    if (ready.value == null) {
+                        ended = true;
+                    } else {
+                        aggregator.aggregate((T) ready.value);
+                        fileBatchPermits[file].release();
+                        next++;
+                    }
+                }
+            }
+            if (partitionsAhead != null) {
+                partitionsAhead.release();
+            }
+        }
+    }
+
+    private static void closeSource(BatchSource source) throws IOException {
+        if (source instanceof Closeable) {
+            ((Closeable) source).close();
+        }
+    }
+
+    private void fail(Throwable t) {
+        if (failure == null) {
+            failure = t;
+        }
+        // Wakes the aggregator, which then rethrows the failure
+        if (fileBatches != null) {
+            for (BlockingQueue<Sequenced<?>> batches: fileBatches) {
+                batches.offer(new Sequenced<Object>(-1, -1, null));
+            }
+        } else {
+            matchedBatches.offer(new Sequenced<Object>(-1, -1, null));
+        }
+    }
+
+    private static void rethrow(Throwable t) throws Exception {
+        if (t instanceof Exception) {
+            throw (Exception) t;
+        }
+        throw (Error) t;
+    }
+
+    private class Reader implements Runnable {
+        private BatchSource source;
+
+        private Reader(BatchSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long seq = 0;
+                for (LineBatch lines = source.nextBatch(); lines != null; lines = source.nextBatch()) {
+                    // Released by the aggregator once it takes the batch
+                    batchesAhead.acquire();
+                    lineBatches.put(new Sequenced<LineBatch>(0, seq++, lines));
+                }
+                matchedBatches.put(new Sequenced<Object>(0, seq, null));
+                for (int i = 0; i < workerCount; i++) {
+                    lineBatches.put(new Sequenced<LineBatch>(0, -1, null));
+                }
+            } catch (InterruptedException e) {
+                // Pipeline shut down
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        private BatchMatcher<T> matcher;
+
+        private Worker(BatchMatcher<T> matcher) {
+            this.matcher = matcher;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Sequenced<LineBatch> lines = lineBatches.take(); lines.value != null; lines = lineBatches.take()) {
+                    Sequenced<T> matched = new Sequenced<T>(lines.partition, lines.seq, matcher.match(lines.value));
+                    if (fileBatches != null) {
+                        fileBatches.get(lines.partition).put(matched);
+                    } else {
+                        matchedBatches.put(matched);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Pipeline shut down
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+    }
+
+    /**
+     * Takes partitions in order, reading and matching each in turn.  As partitions
+     * are taken in order, the aggregator's current partition is always under way,
+     * and later partitions waiting on their read ahead permits cannot hold it up.
+     */
+    private class PartitionWorker implements Runnable {
+        private List<BatchSource>   partitions;
+        private AtomicInteger       nextPartition;
+        private BatchMatcher<T>     matcher;
+
+        private PartitionWorker(List<BatchSource> partitions, AtomicInteger nextPartition, BatchMatcher<T> matcher) {
+            this.partitions = partitions;
+            this.nextPartition = nextPartition;
+            this.matcher = matcher;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    // Released by the aggregator once done with the partition
+                    partitionsAhead.acquire();
+                    int partition = nextPartition.getAndIncrement();
+                    if (partition >= partitions.size()) {
+                        return;
+                    }
+                    BatchSource source = partitions.get(partition);
+                    long seq = 0;
+                    for (LineBatch lines = source.nextBatch(); lines != null; lines = source.nextBatch()) {
+                        fileBatchPermits[partition].acquire();
+                        fileBatches.get(partition).put(new Sequenced<T>(partition, seq++, matcher.match(lines)));
+                    }
+                    fileBatches.get(partition).put(new Sequenced<Object>(partition, seq, null));
+                }
+            } catch (InterruptedException e) {
+                // Pipeline shut down
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+    }
+
+    /**
+     * Starts the file readers in file order, as open file slots become free.  As the
+     * aggregator's current file was started before any later one, it always has a
+     * slot, and the files held open by later readers cannot hold it up.
+     */
+    private class FileLauncher implements Runnable {
+        private List<BatchSource>   files;
+        private ExecutorService     readers;
+
+        private FileLauncher(List<BatchSource> files, ExecutorService readers) {
+            this.files = files;
+            this.readers = readers;
+        }
+
+        @Override
+        public void run() {
+            Semaphore openFiles = new Semaphore(OPEN_FILES_PER_WORKER * workerCount);
+            try {
+                for (int i = 0; i < files.size(); i++) {
+                    openFiles.acquire();
+                    readers.execute(new FileReader(i, files.get(i), openFiles));
+                }
+            } catch (InterruptedException e) {
+                // Pipeline shut down
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+    }
+
+    private class FileReader implements Runnable {
+        private int             file;
+        private BatchSource     source;
+        private Semaphore       openFiles;
+
+        private FileReader(int file, BatchSource source, Semaphore openFiles) {
+            this.file = file;
+            this.source = source;
+            this.openFiles = openFiles;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long seq = 0;
+                for (LineBatch lines = source.nextBatch(); lines != null; lines = source.nextBatch()) {
+                    fileBatchPermits[file].acquire();
+                    lineBatches.put(new Sequenced<LineBatch>(file, seq++, lines));
+                }
+                fileBatches.get(file).put(new Sequenced<Object>(file, seq, null));
+            } catch (InterruptedException e) {
+                // Pipeline shut down
+            } catch (Throwable t) {
+                fail(t);
+            } finally {
+                try {
+                    closeSource(source);
+                } catch (IOException e) {
+                    fail(e);
+                }
+                openFiles.release();
+            }
+        }
+    }
+
+    /**
+     * A batch tagged with its position in the input
+     */
+    private static class Sequenced<V> {
+        private int     partition;
+        private long    seq;
+        private V       value;
+
+        private Sequenced(int partition, long seq, V value) {
+            this.partition = partition;
+            this.seq = seq;
+            this.value = value;
+        }
+    }
+}
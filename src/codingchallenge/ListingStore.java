@@ -0,0 +1,62 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+
+/**
+ * Keeps the lines of matched listings until they are output
+ * 
+ * @author Shannon
+ *
+ */
+interface ListingStore extends Closeable {
+	/**
+	 * @return true if the store needs each line's bytes, false if their file offset is enough
+	 */
+	boolean needsLineBytes();
+	
+	/**
+	 * Stores a listing line
+	 * @param line the line's UTF-8 bytes, if needed by the store
+	 * @param offset the file offset of the line, if known
+	 * @param length the length of the line in bytes
+	 * @return the id of the stored line
+	 * @throws IOException
+	 */
+	int add(byte[] line, long offset, int length) throws IOException;
+
+	/**
+	 * Writes a stored line.  Once all lines are added, may be called from several
+	 * threads at once.
+	 * @param id the id of the line
+	 * @param out where to write the line
+	 * @throws IOException
+	 */
+	void writeTo(int id, OutputStream out) throws IOException;
+
+	/**
+	 * Discards all stored lines.  Ids are then handed out from the start again.
+	 */
+	void clear();
+}
@@ -0,0 +1,201 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A listings file split into byte ranges aligned on line boundaries, each read
+ * independently through its own memory mappings of the file.  A range is mapped a
+ * window at a time, so files and ranges larger than 2GB are supported.
+ * 
+ * @author Shannon
+ *
+ */
+class MappedListingsFile implements Closeable {
+    /**
+     * Largest part of a range mapped at once
+     */
+    private static final long   WINDOW_SIZE = 256L << 20;
+
+    private FileChannel         channel;
+    private long[]              boundaries;
+
+    /**
+     * Maps the file and splits it into ranges of about equal size
+     * @param path the listings file
+     * @param rangeCount the number of ranges
+     * @throws IOException
+     */
+    MappedListingsFile(Path path, int rangeCount) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        long size = channel.size();
+        boundaries = new long[rangeCount + 1];
+        boundaries[rangeCount] = size;
+        for (int i = 1; i < rangeCount; i++) {
+            long boundary = Math.max(boundaries[i - 1], size / rangeCount * i);
+            boundaries[i] = nextLineStart(boundary);
+        }
+    }
+
+    /**
+     * @return the number of ranges
+     */
+    int getRangeCount() {
+        return boundaries.length - 1;
+    }
+
+    /**
+     * @param range the range index
+     * @return a reader over the lines of the range
+     */
+    RangeReader openRange(int range) {
+        return new RangeReader(boundaries[range], boundaries[range + 1]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Finds the start of the first line beginning at or after the given position
+     */
+    private long nextLineStart(long position) throws IOException {
+        if (position == 0) {
+            return 0;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(64 << 10);
+        long pos = position - 1;
+        while (true) {
+            buf.clear();
+            int cnt = channel.read(buf, pos);
+            if (cnt <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < cnt; i++) {
+                if (buf.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += cnt;
+        }
+    }
+
+    /**
+     * Reads the lines of one range, decoding them as UTF-8 directly from the mapping
+     */
+    class RangeReader implements LineReader {
+        private long                end;
+        private long                windowStart;
+        private MappedByteBuffer    window;
+        private int                 windowPos;
+        private long                lineOffset;
+        private int                 lineLength;
+        private CharsetDecoder      decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        private RangeReader(long start, long end) {
+            this.end = end;
+            this.windowStart = start;
+        }
+
+        /**
+         * @return the next line, without its line terminator, or null at the end of the range
+         * @throws IOException
+         */
+        public String readLine() throws IOException {
+            if (!findLine()) {
+                return null;
+            }
+            ByteBuffer line = window.duplicate();
+            line.position(windowPos);
+            line.limit(windowPos + lineLength);
+            windowPos += lineLength;
+            if (windowPos < window.limit()) {
+                // Skips the newline
+                windowPos++;
+            }
+            return decoder.decode(line).toString();
+        }
+
+        /**
+         * @return the file offset of the line last read
+         */
+        public long getLineOffset() {
+            return lineOffset;
+        }
+
+        /**
+         * @return the length in bytes of the line last read, without its line terminator
+         */
+        public int getLineLength() {
+            return lineLength;
+        }
+
+        /**
+         * Positions the window on the next line, mapping the following part of the
+         * range if the line is not wholly within the current window
+         * @return false at the end of the range
+         */
+        private boolean findLine() throws IOException {
+            long size = WINDOW_SIZE;
+            while (true) {
+                if (window != null) {
+                    int limit = window.limit();
+                    for (int i = windowPos; i < limit; i++) {
+                        if (window.get(i) == '\n') {
+                            lineOffset = windowStart + windowPos;
+                            lineLength = i - windowPos;
+                            return true;
+                        }
+                    }
+                    if (windowStart + limit == end && windowPos < limit) {
+                        // Last line of the range has no newline
+                        lineOffset = windowStart + windowPos;
+                        lineLength = limit - windowPos;
+                        return true;
+                    }
+                    if (windowStart + windowPos == end) {
+                        return false;
+                    }
+                    if (windowPos == 0) {
+                        // Line longer than the window
+                        size = Math.min(Integer.MAX_VALUE, 2 * size);
+                    }
+                    windowStart += windowPos;
+                } else if (windowStart == end) {
+                    return false;
+                }
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(size, end - windowStart));
+                windowPos = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+
+/**
+ * Collects the listings matched by each product, and writes them out product by
+ * product.  Listings are added in input order, by the pipeline aggregator only.
+ * 
+ * @author Shannon
+ *
+ */
+interface MatchAggregator extends Closeable {
+    /**
+     * @return true if each matched listing's line bytes are needed, false if its file offset is enough
+     */
+    boolean needsLineBytes();
+
+    /**
+     * Adds a matched listing, before the products it matched
+     * @param line the line's UTF-8 bytes, if needed
+     * @param offset the file offset of the line, if known
+     * @param length the length of the line in bytes
+     * @return the id of the listing, to pass to {@link #addMatch(int, Product, long)}
+     * @throws IOException
+     */
+    int addListing(byte[] line, long offset, int length) throws IOException;
+
+    /**
+     * Adds a product matched by the last added listing.  Products are told apart by
+     * name, so the same product from two versions of the catalog gets one entry.
+     * @param listingId the id of the listing
+     * @param product the matched product
+     * @param catalogVersion the version of the catalog that matched it, 0 if not tracked
+     * @throws IOException
+     */
+    void addMatch(int listingId, Product product, long catalogVersion) throws IOException;
+
+    /**
+     * Writes each product with its listings: products in the order of their first
+     * matching listing, and each product's listings in the order they were added.
+     * The written matches are then discarded, and the aggregator can take more.
+     * @param writer where to write the products
+     * @throws IOException
+     */
+    void writeTo(EntryWriter writer) throws IOException;
+}
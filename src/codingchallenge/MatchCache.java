@@ -0,0 +1,240 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Bounded cache of match results, keyed by manufacturer and normalized listing title.
+ * Listings whose titles differ only in text dropped by the tokenizer share an entry.
+ * <p>
+ * Keys are reduced to a 64 bit hash which selects both the stripe and the slot
+ * within the stripe.  Each entry keeps its full key, which is compared on lookup,
+ * so hash collisions are treated as misses rather than returning wrong results.
+ * Each stripe is a small LRU map guarded by its own lock.
+ * 
+ * @author Shannon
+ *
+ */
+public class MatchCache {
+    private static final int    DEFAULT_STRIPES = 16;
+    private static final long   FNV_OFFSET      = 0xcbf29ce484222325L;
+    private static final long   FNV_PRIME       = 0x100000001b3L;
+
+    private Stripe[]            stripes;
+    private int                 stripeShift;
+    private volatile long       generation;
+    private AtomicLong          hits            = new AtomicLong();
+    private AtomicLong          misses          = new AtomicLong();
+
+    /**
+     * Match cache
+     * @param capacity the maximum number of cached results
+     */
+    public MatchCache(int capacity) {
+        this(capacity, DEFAULT_STRIPES);
+    }
+
+    /**
+     * Match cache
+     * @param capacity the maximum number of cached results
+     * @param stripeCount the number of independently locked stripes, rounded up to a power of two
+     */
+    public MatchCache(int capacity, int stripeCount) {
+        if (capacity < 1 || stripeCount < 1) {
+            throw new IllegalArgumentException("Capacity and stripe count must be positive");
+        }
+        int bits = 32 - Integer.numberOfLeadingZeros(stripeCount - 1);
+        stripes = new Stripe[1 << bits];
+        stripeShift = 64 - bits;
+        int stripeCapacity = Math.max(1, (capacity + stripes.length - 1) / stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(stripeCapacity);
+        }
+    }
+
+    /**
+     * Gets the cached result for the given key
+     * @param manufacturer the manufacturer whose index is searched
+     * @param tokens the tokenized listing title
+     * @return the cached product ordinals, or null if there are none
+     */
+    public int[] get(String manufacturer, List<String> tokens) {
+        long hash = hash(manufacturer, tokens);
+        Stripe stripe = stripeFor(hash);
+        Entry entry;
+        synchronized (stripe) {
+            entry = stripe.get(hash);
+        }
+        if (entry != null && entry.generation == generation && entry.matches(manufacturer, tokens)) {
+            hits.incrementAndGet();
+            return entry.productOrdinals;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches a result.  The result is dropped if the cache has been invalidated since
+     * the given generation, as it may have been computed against an outdated catalog.
+     * @param generation the cache generation read before computing the result
+     * @param manufacturer the manufacturer whose index was searched
+     * @param tokens the tokenized listing title
+     * @param productOrdinals the matching product ordinals
+     */
+    public void put(long generation, String manufacturer, List<String> tokens, int[] productOrdinals) {
+        if (generation != this.generation) {
+            return;
+        }
+        long hash = hash(manufacturer, tokens);
+        Entry entry = new Entry(generation, manufacturer, tokens.toArray(new String[tokens.size()]), productOrdinals);
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            stripe.put(hash, entry);
+        }
+    }
+
+    /**
+     * @return the current generation, to be passed to {@link #put}
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Drops all cached results.  Called whenever the catalog changes.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            generation++;
+        }
+        for (Stripe stripe: stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the fraction of lookups that found a cached result
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0.0 : (double) hitCount / total;
+    }
+
+    /**
+     * Shares the hit and miss counts of a cache this one replaces
+     * @param previous the replaced cache
+     */
+    public void continueStatistics(MatchCache previous) {
+        hits = previous.hits;
+        misses = previous.misses;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("match cache: %d hits, %d misses, %.1f%% hit rate",
+                getHitCount(), getMissCount(), 100.0 * getHitRate());
+    }
+
+    private Stripe stripeFor(long hash) {
+        return stripes[stripes.length == 1 ? 0 : (int) (hash >>> stripeShift)];
+    }
+
+    /**
+     * FNV-1a hash of the manufacturer and tokens, each followed by a separator
+     * that cannot occur within a token
+     */
+    static long hash(String manufacturer, List<String> tokens) {
+        long hash = hashString(FNV_OFFSET, manufacturer);
+        for (String token: tokens) {
+            hash = hashString(hash, token);
+        }
+        return hash;
+    }
+
+    private static long hashString(long hash, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        hash ^= ' ';
+        hash *= FNV_PRIME;
+        return hash;
+    }
+
+    private static class Entry {
+        private long        generation;
+        private String      manufacturer;
+        private String[]    tokens;
+        private int[]       productOrdinals;
+
+        private Entry(long generation, String manufacturer, String[] tokens, int[] productOrdinals) {
+            this.generation = generation;
+            this.manufacturer = manufacturer;
+            this.tokens = tokens;
+            this.productOrdinals = productOrdinals;
+        }
+
+        private boolean matches(String manufacturer, List<String> tokens) {
+            if (!this.manufacturer.equals(manufacturer) || this.tokens.length != tokens.size()) {
+                return false;
+            }
+            for (int i = 0; i < this.tokens.length; i++) {
+                if (!this.tokens[i].equals(tokens.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * One lock stripe, evicting its least recently used entry when full
+     */
+    private static class Stripe extends LinkedHashMap<Long,Entry> {
+        private static final long serialVersionUID = 1L;
+        private int capacity;
+
+        private Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long,Entry> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Checkpoints of a listings run, so a run that dies can resume where it left off.
+ * <p>
+ * Every matched listing is appended to a journal as it is aggregated: its raw line
+ * and the ordinals of the products it matched.  Periodically the journal is forced
+ * to disk, and a checkpoint written atomically next to it, holding the listings
+ * offset reached and the journal length at that point.  On resume the journal is cut
+ * back to the checkpoint, replayed into the aggregator in its original order, and
+ * listings are read on from the checkpoint offset, so the output is identical to
+ * that of an uninterrupted run.
+ * <p>
+ * A checkpoint is tied to its products and listings files by a fingerprint, and is
+ * deleted once the run has written its output.
+ * 
+ * @author Shannon
+ *
+ */
+class MatchCheckpoint implements Closeable {
+    private static final String     JOURNAL_FILE = "matches.journal";
+    private static final String     CHECKPOINT_FILE = "checkpoint.properties";
+
+    private File                    directory;
+    private String                  fingerprint;
+    private long                    intervalNanos;
+    private long                    listingsOffset;
+    private long                    journalLength;
+    private long                    matchedCount;
+    private long                    resumedOffset;
+    private long                    resumedMatchedCount;
+    private long                    lastCheckpointNanos = System.nanoTime();
+    private FileOutputStream        journalFile;
+    private DataOutputStream        journal;
+
+    /**
+     * Opens the checkpoints of a run
+     * @param directory where the journal and checkpoint are kept
+     * @param fingerprint identifies the run's input
+     * @param intervalMillis how often to checkpoint
+     * @param resume whether to resume from an earlier checkpoint in the directory,
+     * rather than discarding it
+     * @throws IOException if the checkpoint cannot be read, or is for other input
+     */
+    MatchCheckpoint(File directory, String fingerprint, long intervalMillis, boolean resume) throws IOException {
+        this.directory = directory;
+        this.fingerprint = fingerprint;
+        this.intervalNanos = intervalMillis * 1000000L;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File checkpointFile = new File(directory, CHECKPOINT_FILE);
+        if (resume && checkpointFile.exists()) {
+            readCheckpoint(checkpointFile);
+        } else {
+            checkpointFile.delete();
+        }
+        RandomAccessFile file = new RandomAccessFile(new File(directory, JOURNAL_FILE), "rw");
+        try {
+            if (file.length() < journalLength) {
+                throw new IOException("Checkpoint journal in " + directory + " is shorter than its checkpoint");
+            }
+            // Drops what was journaled after the checkpoint
+            file.setLength(journalLength);
+        } finally {
+            file.close();
+        }
+        journalFile = new FileOutputStream(new File(directory, JOURNAL_FILE), true);
+        journal = new DataOutputStream(new BufferedOutputStream(journalFile, 1 << 20));
+    }
+
+    /**
+     * Fingerprint of a run's input: the products file's size and checksum, and the
+     * listings file's path and size
+     * @param productsFile the products file
+     * @param listingsFile the listings file
+     * @return the fingerprint
+     * @throws IOException
+     */
+    static String fingerprint(File productsFile, File listingsFile) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(productsFile);
+        try {
+            byte[] buf = new byte[64 << 10];
+            for (int count = in.read(buf); count >= 0; count = in.read(buf)) {
+                crc.update(buf, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return "products " + productsFile.length() + " " + Long.toHexString(crc.getValue())
+                + ", listings " + listingsFile.getAbsolutePath() + " " + listingsFile.length();
+    }
+
+    /**
+     * @return the listings offset to resume reading from, 0 if not resuming
+     */
+    long getListingsOffset() {
+        return listingsOffset;
+    }
+
+    /**
+     * @return the number of matched listings journaled
+     */
+    long getMatchedCount() {
+        return matchedCount;
+    }
+
+    /**
+     * @return the listings offset the run resumed from, 0 if not resumed
+     */
+    long getResumedOffset() {
+        return resumedOffset;
+    }
+
+    /**
+     * @return the number of matched listings before the offset the run resumed from
+     */
+    long getResumedMatchedCount() {
+        return resumedMatchedCount;
+    }
+
+    /**
+     * Replays the journaled listings into an aggregator
+     * @param matcher the matcher whose product ordinals were journaled
+     * @param aggregator the aggregator
+     * @throws IOException
+     */
+    void replay(ProductMatcher matcher, MatchAggregator aggregator) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(directory, JOURNAL_FILE)), 1 << 20));
+        try {
+            for (long pos = 0; pos < journalLength; ) {
+                byte[] line = new byte[in.readInt()];
+                in.readFully(line);
+                int matchCount = in.readInt();
+                int listingId = aggregator.addListing(line, -1, 0);
+                for (int i = 0; i < matchCount; i++) {
+                    aggregator.addMatch(listingId, matcher.getProduct(in.readInt()), 0);
+                }
+                pos += 4 + line.length + 4 + 4 * matchCount;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Journals a matched listing
+     * @param line the listing's raw line
+     * @param matches the matches of the listing's batch
+     * @param index the listing's index in its batch
+     * @throws IOException
+     */
+    void addListing(byte[] line, MatchResult matches, int index) throws IOException {
+        int matchCount = matches.getMatchEnd(index) - matches.getMatchStart(index);
+        journal.writeInt(line.length);
+        journal.write(line);
+        journal.writeInt(matchCount);
+        for (int pos = matches.getMatchStart(index); pos < matches.getMatchEnd(index); pos++) {
+            journal.writeInt(matches.getProductOrdinal(pos));
+        }
+        journalLength += 4 + line.length + 4 + 4 * matchCount;
+        matchedCount++;
+    }
+
+    /**
+     * Notes that all listings before an offset have been journaled, and checkpoints
+     * if the interval has passed since the last checkpoint
+     * @param offset the listings offset reached
+     * @throws IOException
+     */
+    void advance(long offset) throws IOException {
+        listingsOffset = offset;
+        if (System.nanoTime() - lastCheckpointNanos >= intervalNanos) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Deletes the checkpoint once the run is complete
+     * @throws IOException
+     */
+    void delete() throws IOException {
+        close();
+        new File(directory, CHECKPOINT_FILE).delete();
+        new File(directory, JOURNAL_FILE).delete();
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+
+    /**
+     * Checkpoints now, as at the end of the listings
+     * @throws IOException
+     */
+    void checkpoint() throws IOException {
+        journal.flush();
+        journalFile.getFD().sync();
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty("fingerprint", fingerprint);
+        checkpoint.setProperty("listingsOffset", Long.toString(listingsOffset));
+        checkpoint.setProperty("journalLength", Long.toString(journalLength));
+        checkpoint.setProperty("matchedCount", Long.toString(matchedCount));
+        File temporary = new File(directory, CHECKPOINT_FILE + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            checkpoint.store(out, "Listings run checkpoint");
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(new File(directory, CHECKPOINT_FILE))) {
+            throw new IOException("Cannot write checkpoint in " + directory);
+        }
+        lastCheckpointNanos = System.nanoTime();
+    }
+
+    private void readCheckpoint(File checkpointFile) throws IOException {
+        Properties checkpoint = new Properties();
+        InputStream in = new FileInputStream(checkpointFile);
+        try {
+            checkpoint.load(in);
+        } finally {
+            in.close();
+        }
+        if (!fingerprint.equals(checkpoint.getProperty("fingerprint"))) {
+            throw new IOException("Checkpoint in " + directory + " is for other input ("
+                    + checkpoint.getProperty("fingerprint") + "); remove it to start afresh");
+        }
+        try {
+            listingsOffset = Long.parseLong(checkpoint.getProperty("listingsOffset"));
+            journalLength = Long.parseLong(checkpoint.getProperty("journalLength"));
+            matchedCount = Long.parseLong(checkpoint.getProperty("matchedCount"));
+            resumedOffset = listingsOffset;
+            resumedMatchedCount = matchedCount;
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad checkpoint in " + checkpointFile);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Client of a {@link MatchProtocolServer}.  Requests are pipelined: each call sends
+ * its request straight away and returns a future, completed by a reader thread as
+ * the responses arrive, so many requests can be in flight on the one connection.
+ * Thread-safe.
+ * <p>
+ * Example:
+ * <pre>
+ * MatchClient client = new MatchClient("localhost", 9090);
+ * MatchClient.Catalog catalog = client.getCatalog().get();
+ * MatchClient.Matches matches = client.match(listings).get();
+ * for (int pos = matches.getResult().getMatchStart(0); pos &lt; matches.getResult().getMatchEnd(0); pos++) {
+ *     String name = catalog.getProductNames().get(matches.getResult().getProductOrdinal(pos));
+ * }
+ * client.close();
+ * </pre>
+ * 
+ * @author Shannon
+ *
+ */
+public class MatchClient implements Closeable {
+    private static final int    BUFFER_SIZE = 64 << 10;
+
+    /**
+     * The products matched by a batch of listings
+     */
+    public static class Matches {
+        private long        catalogVersion;
+        private MatchResult result;
+
+        Matches(long catalogVersion, MatchResult result) {
+            this.catalogVersion = catalogVersion;
+            this.result = result;
+        }
+
+        /**
+         * @return the version of the catalog whose product ordinals the result holds
+         */
+        public long getCatalogVersion() {
+            return catalogVersion;
+        }
+
+        /**
+         * @return the ordinals of the products matched by each listing
+         */
+        public MatchResult getResult() {
+            return result;
+        }
+    }
+
+    /**
+     * The server's product catalog
+     */
+    public static class Catalog {
+        private long            catalogVersion;
+        private List<String>    productNames;
+
+        Catalog(long catalogVersion, List<String> productNames) {
+            this.catalogVersion = catalogVersion;
+            this.productNames = productNames;
+        }
+
+        public long getCatalogVersion() {
+            return catalogVersion;
+        }
+
+        /**
+         * @return the product names, by product ordinal
+         */
+        public List<String> getProductNames() {
+            return productNames;
+        }
+    }
+
+    private Socket                  socket;
+    private DataOutputStream        out;
+    private DataInputStream         in;
+    private AtomicInteger           nextRequestId = new AtomicInteger();
+    private ConcurrentMap<Integer,PendingResponse<?>> pending = new ConcurrentHashMap<Integer,PendingResponse<?>>();
+    private Thread                  readerThread;
+    private volatile IOException    failure;
+
+    /**
+     * Connects to a server
+     * @param host the server host
+     * @param port the server port
+     * @throws IOException
+     */
+    public MatchClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readResponses();
+            }
+        }, "match-client-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Sends a batch of listings to match.  Only their manufacturers and titles are sent.
+     * @param listings the listings
+     * @return the future matches
+     * @throws IOException if the request cannot be sent
+     */
+    public Future<Matches> match(List<Listing> listings) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        data.writeInt(listings.size());
+        for (Listing listing: listings) {
+            MatchProtocol.writeString(data, listing.getManufacturer());
+            MatchProtocol.writeString(data, listing.getTitle());
+        }
+        PendingResponse<Matches> response = new PendingResponse<Matches>() {
+            @Override
+            Matches parse(DataInputStream data) throws IOException {
+                long catalogVersion = data.readLong();
+                int listingCount = data.readInt();
+                int matchCount = data.readInt();
+                int[] offsets = new int[listingCount + 1];
+                for (int i = 0; i < offsets.length; i++) {
+                    offsets[i] = data.readInt();
+                }
+                int[] productOrdinals = new int[matchCount];
+                for (int i = 0; i < matchCount; i++) {
+                    productOrdinals[i] = data.readInt();
+                }
+                return new Matches(catalogVersion, new MatchResult(offsets, productOrdinals));
+            }
+        };
+        send(MatchProtocol.TYPE_MATCH, payload, response);
+        return response;
+    }
+
+    /**
+     * Asks for the server's product catalog, to map product ordinals to names
+     * @return the future catalog
+     * @throws IOException if the request cannot be sent
+     */
+    public Future<Catalog> getCatalog() throws IOException {
+        PendingResponse<Catalog> response = new PendingResponse<Catalog>() {
+            @Override
+            Catalog parse(DataInputStream data) throws IOException {
+                long catalogVersion = data.readLong();
+                int count = data.readInt();
+                List<String> names = new ArrayList<String>(count);
+                for (int i = 0; i < count; i++) {
+                    names.add(MatchProtocol.readString(data));
+                }
+                return new Catalog(catalogVersion, names);
+            }
+        };
+        send(MatchProtocol.TYPE_CATALOG, new ByteArrayOutputStream(), response);
+        return response;
+    }
+
+    private void send(byte type, ByteArrayOutputStream payload, PendingResponse<?> response) throws IOException {
+        int requestId = nextRequestId.getAndIncrement();
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.size() + 5);
+        DataOutputStream data = new DataOutputStream(frame);
+        data.writeInt(requestId);
+        data.writeByte(type);
+        payload.writeTo(data);
+        pending.put(requestId, response);
+        synchronized (out) {
+            if (failure != null) {
+                pending.remove(requestId);
+                throw failure;
+            }
+            MatchProtocol.writeFrame(out, frame);
+            out.flush();
+        }
+    }
+
+    private void readResponses() {
+        try {
+            for (byte[] frame = MatchProtocol.readFrame(in); frame != null; frame = MatchProtocol.readFrame(in)) {
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(frame));
+                int requestId = data.readInt();
+                byte status = data.readByte();
+                PendingResponse<?> response = pending.remove(requestId);
+                if (response == null) {
+                    throw new IOException("Response to unknown request " + requestId);
+                }
+                if (status == MatchProtocol.STATUS_OK) {
+                    response.complete(data);
+                } else {
+                    response.fail(new IOException("Server error: " + MatchProtocol.readString(data)));
+                }
+            }
+            failAll(new EOFException("Connection closed by server"));
+        } catch (IOException e) {
+            failAll(e);
+        }
+    }
+
+    private void failAll(IOException e) {
+        synchronized (out) {
+            failure = e;
+        }
+        for (Integer requestId: pending.keySet()) {
+            PendingResponse<?> response = pending.remove(requestId);
+            if (response != null) {
+                response.fail(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Future response to a request, parsed from its response frame
+     */
+    private abstract static class PendingResponse<T> implements Future<T> {
+        private CountDownLatch  done = new CountDownLatch(1);
+        private T               value;
+        private IOException     failure;
+
+        abstract T parse(DataInputStream data) throws IOException;
+
+        void complete(DataInputStream data) {
+            try {
+                value = parse(data);
+            } catch (IOException e) {
+                failure = e;
+            }
+            done.countDown();
+        }
+
+        void fail(IOException e) {
+            failure = e;
+            done.countDown();
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private T result() throws ExecutionException {
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return value;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * Requests cannot be withdrawn once sent
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Long running matcher of a stream of listings.  Reads one listing per line, and
+ * for each writes one NDJSON line holding the listing, the version of the catalog
+ * that matched it and the names of the products it matched, in input order.  The
+ * version changes when --watch-products reloads the catalog.
+ * <p>
+ * A reader thread queues the lines as they arrive, and whatever is queued is matched
+ * as one micro-batch.  Output lines collect in the output buffer, and are flushed a
+ * given latency after the first unflushed one was written, so a busy stream is
+ * written in large blocks while no line waits longer than the latency.
+ * <p>
+ * A line that is not a listing, or that cannot be matched, gets an error line in
+ * its place, and the daemon carries on.
+ * 
+ * @author Shannon
+ *
+ */
+class MatchDaemon {
+    private static final Charset    UTF_8 = Charset.forName("UTF-8");
+    private static final int        BATCH_SIZE = 1000;
+    private static final String     END = new String("end");
+
+    private MatcherSource           matcherSource;
+    private BufferedReader          in;
+    private JsonOutputSink          out;
+    private long                    maxFlushLatencyNanos;
+    private BlockingQueue<String>   queue = new ArrayBlockingQueue<String>(4 * BATCH_SIZE);
+    private volatile IOException    readFailure;
+
+    /**
+     * Match daemon
+     * @param matcherSource supplies the matcher for each micro-batch
+     * @param in the listings, one per line
+     * @param out where to write the matches
+     * @param maxFlushLatencyMillis the longest an output line waits before being flushed
+     */
+    MatchDaemon(MatcherSource matcherSource, Reader in, JsonOutputSink out, long maxFlushLatencyMillis) {
+        this.matcherSource = matcherSource;
+        this.in = new BufferedReader(in);
+        this.out = out;
+        this.maxFlushLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxFlushLatencyMillis);
+    }
+
+    /**
+     * Matches listings until the end of the input
+     * @throws IOException if reading or writing fails
+     * @throws InterruptedException
+     */
+    void run() throws IOException, InterruptedException {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLines();
+            }
+        }, "listing-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        List<String> batch = new ArrayList<String>(BATCH_SIZE);
+        boolean unflushed = false;
+        long flushDeadline = 0;
+        for (;;) {
+            String line;
+            if (!unflushed) {
+                line = queue.take();
+            } else {
+                line = queue.poll(flushDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (line == null) {
+                    out.flush();
+                    unflushed = false;
+                    continue;
+                }
+            }
+            batch.clear();
+            batch.add(line);
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            boolean ended = false;
+            if (batch.get(batch.size() - 1) == END) {
+                batch.remove(batch.size() - 1);
+                ended = true;
+            }
+            writeMatches(batch, matcherSource.getMatcher(), out);
+            if (!unflushed) {
+                unflushed = true;
+                flushDeadline = System.nanoTime() + maxFlushLatencyNanos;
+            }
+            if (ended) {
+                break;
+            }
+            if (System.nanoTime() - flushDeadline >= 0) {
+                out.flush();
+                unflushed = false;
+            }
+        }
+        out.flush();
+        if (readFailure != null) {
+            throw readFailure;
+        }
+    }
+
+    private void readLines() {
+        try {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                line = line.trim();
+                if (line.length() > 0) {
+                    queue.put(line);
+                }
+            }
+        } catch (IOException e) {
+            readFailure = e;
+        } catch (InterruptedException e) {
+            return;
+        }
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            // Shutting down
+        }
+    }
+
+    /**
+     * Matches a batch of listing lines, and writes one line per listing: the listing,
+     * the matcher's catalog version and the names of the products it matched, or an
+     * error and the catalog version if it could not be parsed or matched
+     * @param lines the listing lines
+     * @param matcher the matcher
+     * @param out where to write the matches
+     * @throws IOException
+     */
+    static void writeMatches(List<String> lines, ProductMatcher matcher, JsonOutputSink out) throws IOException {
+        List<Listing> listings = new ArrayList<Listing>(lines.size());
+        List<String> errors = new ArrayList<String>(lines.size());
+        for (String line: lines) {
+            Listing listing = null;
+            String error = null;
+            try {
+                listing = SortableChallenge.parseListing(line);
+            } catch (Exception e) {
+                error = e.getMessage();
+            }
+            // Unparsable lines are matched as an empty listing, which matches nothing
+            listings.add(listing != null ? listing : new Listing(null, null, null, null));
+            errors.add(error);
+        }
+        MatchResult[] results = new MatchResult[lines.size()];
+        int[] resultIndexes = new int[lines.size()];
+        try {
+            MatchResult matches = matcher.matchAll(listings);
+            for (int i = 0; i < lines.size(); i++) {
+                results[i] = matches;
+                resultIndexes[i] = i;
+            }
+        } catch (RuntimeException e) {
+            // Matches one at a time, so only the listings that cannot be matched fail
+            for (int i = 0; i < lines.size(); i++) {
+                try {
+                    results[i] = matcher.matchAll(Collections.singletonList(listings.get(i)));
+                } catch (RuntimeException listingFailure) {
+                    if (errors.get(i) == null) {
+                        errors.set(i, "Cannot match listing: " + listingFailure);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            if (errors.get(i) != null) {
+                out.writeAscii("{\"error\":");
+                out.writeJsonString(errors.get(i));
+                out.writeAscii(",\"catalog_version\":");
+                out.writeLong(matcher.getCatalogVersion());
+                out.writeAscii("}\n");
+                continue;
+            }
+            out.writeAscii("{\"listing\":");
+            out.write(lines.get(i).getBytes(UTF_8));
+            out.writeAscii(",\"catalog_version\":");
+            out.writeLong(matcher.getCatalogVersion());
+            out.writeAscii(",\"product_names\":[");
+            MatchResult matches = results[i];
+            int index = resultIndexes[i];
+            for (int pos = matches.getMatchStart(index); pos < matches.getMatchEnd(index); pos++) {
+                if (pos > matches.getMatchStart(index)) {
+                    out.write(',');
+                }
+                out.writeJsonString(matcher.getProduct(matches.getProductOrdinal(pos)).getName());
+            }
+            out.writeAscii("]}\n");
+        }
+    }
+}
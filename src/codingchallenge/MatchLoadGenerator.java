@@ -0,0 +1,152 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Load generator for {@link MatchServer}: posts listings one at a time to
+ * <code>/match</code> from a number of concurrent clients, each reusing its
+ * connection, and reports the throughput and latency percentiles.
+ * <p>
+ * Usage: <code>java codingchallenge.MatchLoadGenerator &lt;url&gt; &lt;listings&gt;
+ * &lt;concurrency&gt; &lt;requests&gt;</code>, for example
+ * <code>http://localhost:8080/match listings.txt 16 100000</code>.  The listings
+ * are posted in turn, starting over when they run out.
+ * 
+ * @author Shannon
+ *
+ */
+public class MatchLoadGenerator {
+    private static final Charset    UTF_8 = Charset.forName("UTF-8");
+
+    private URL             url;
+    private List<byte[]>    listings;
+    private int             concurrency;
+    private int             requestCount;
+    private long[]          latencies;
+    private AtomicInteger   nextRequest = new AtomicInteger();
+    private AtomicInteger   errorCount = new AtomicInteger();
+
+    MatchLoadGenerator(URL url, List<byte[]> listings, int concurrency, int requestCount) {
+        this.url = url;
+        this.listings = listings;
+        this.concurrency = concurrency;
+        this.requestCount = requestCount;
+        latencies = new long[requestCount];
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4) {
+            System.out.println("java codingchallenge.MatchLoadGenerator <url> <listings> <concurrency> <requests>");
+            System.exit(0);
+        }
+        List<byte[]> listings = new ArrayList<byte[]>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(CompressedInput.open(new File(args[1])), UTF_8));
+        try {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.trim().length() > 0) {
+                    listings.add(line.trim().getBytes(UTF_8));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if (listings.isEmpty()) {
+            System.err.println("No listings in " + args[1]);
+            System.exit(1);
+        }
+        new MatchLoadGenerator(new URL(args[0]), listings, Integer.parseInt(args[2]), Integer.parseInt(args[3])).run();
+    }
+
+    void run() throws InterruptedException {
+        List<Thread> clients = new ArrayList<Thread>();
+        for (int i = 0; i < concurrency; i++) {
+            clients.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    sendRequests();
+                }
+            }, "load-client-" + i));
+        }
+        long start = System.nanoTime();
+        for (Thread client: clients) {
+            client.start();
+        }
+        for (Thread client: clients) {
+            client.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.println(String.format("%d requests, concurrency %d, %d errors, in %.2f s: %.0f requests/s",
+                requestCount, concurrency, errorCount.get(), elapsed / 1e9, requestCount / (elapsed / 1e9)));
+        System.out.println(String.format("latency p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                percentile(sorted, 50) / 1e6, percentile(sorted, 99) / 1e6, percentile(sorted, 100) / 1e6));
+    }
+
+    private void sendRequests() {
+        byte[] buf = new byte[4096];
+        for (int request = nextRequest.getAndIncrement(); request < requestCount; request = nextRequest.getAndIncrement()) {
+            byte[] listing = listings.get(request % listings.size());
+            long start = System.nanoTime();
+            try {
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(listing.length);
+                connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+                OutputStream out = connection.getOutputStream();
+                out.write(listing);
+                out.close();
+                boolean ok = connection.getResponseCode() == 200;
+                InputStream in = ok ? connection.getInputStream() : connection.getErrorStream();
+                if (in != null) {
+                    // Reading the response to the end lets the connection be reused
+                    while (in.read(buf) >= 0) {
+                    }
+                    in.close();
+                }
+                if (!ok) {
+                    errorCount.incrementAndGet();
+                }
+            } catch (IOException e) {
+                errorCount.incrementAndGet();
+            }
+            latencies[request] = System.nanoTime() - start;
+        }
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
@@ -0,0 +1,116 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.nio.charset.*;
+
+/**
+ * Binary protocol of {@link MatchProtocolServer} and {@link MatchClient}.  Over a TCP
+ * connection, the client sends request frames, and the server answers each with a
+ * response frame, in request order.  Clients may send further requests without
+ * waiting for responses.  All numbers are big-endian.
+ * 
+ * <pre>
+ * request:   int length, int requestId, byte type, payload
+ *   MATCH      int count, then count times: string manufacturer, string title
+ *   CATALOG    nothing
+ * response:  int length, int requestId, byte status, payload
+ *   OK to MATCH    long catalogVersion, int listingCount, int matchCount,
+ *                  int[listingCount + 1] match offsets, int[matchCount] product ordinals
+ *   OK to CATALOG  long catalogVersion, int productCount, string[productCount] product names
+ *   ERROR          string message
+ * string:    int byte length, or -1 for null, then UTF-8 bytes
+ * </pre>
+ * <p>
+ * A frame's length counts the bytes that follow it.  Match responses are laid out
+ * as a {@link MatchResult}: the ordinals of the products matching listing i are at
+ * offsets[i] up to offsets[i + 1].  Ordinals index the product names of the catalog
+ * version given, as returned by a CATALOG request.
+ * 
+ * @author Shannon
+ *
+ */
+class MatchProtocol {
+    static final byte   TYPE_MATCH = 1;
+    static final byte   TYPE_CATALOG = 2;
+    static final byte   STATUS_OK = 0;
+    static final byte   STATUS_ERROR = 1;
+
+    /**
+     * Longest frame accepted, beyond which the connection is closed
+     */
+    static final int    MAX_FRAME_LENGTH = 64 << 20;
+
+    private static final Charset    UTF_8 = Charset.forName("UTF-8");
+
+    private MatchProtocol() {
+    }
+
+    static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Writes a frame: its length, then its contents
+     */
+    static void writeFrame(DataOutputStream out, ByteArrayOutputStream frame) throws IOException {
+        out.writeInt(frame.size());
+        frame.writeTo(out);
+    }
+
+    /**
+     * Reads a frame's contents
+     * @return the frame, or null at the end of the stream
+     * @throws IOException if the frame is cut short or too long
+     */
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            return null;
+        }
+        int length = (b << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Bad frame length: " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+}
@@ -0,0 +1,213 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * TCP server of the binary {@link MatchProtocol}, for high volumes of matches
+ * without HTTP and JSON overheads.  Each connection is served by a thread of its
+ * own, virtual when the JDK has them, reading requests and writing responses in
+ * turn.  Responses are flushed only once no further request is waiting, so a client
+ * pipelining requests gets its responses in few large writes.
+ * 
+ * @author Shannon
+ *
+ */
+class MatchProtocolServer {
+    private static final int    BUFFER_SIZE = 64 << 10;
+
+    private MatcherSource       matcherSource;
+    private ServerSocket        serverSocket;
+    private ExecutorService     executor;
+    private Thread              acceptThread;
+    private volatile boolean    stopped;
+    private Set<Socket>         connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket,Boolean>());
+
+    /**
+     * Match protocol server, not yet started
+     * @param matcherSource supplies the matcher for each request
+     * @param port the port to listen on, 0 for any free port
+     * @throws IOException
+     */
+    MatchProtocolServer(MatcherSource matcherSource, int port) throws IOException {
+        this.matcherSource = matcherSource;
+        serverSocket = new ServerSocket(port);
+        executor = DaemonThreadFactory.newPerTaskExecutor("match-connection-");
+    }
+
+    /**
+     * Starts accepting connections, on a background daemon thread
+     */
+    void start() {
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "match-protocol-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * @return the port listened on
+     */
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections, and closes those open
+     */
+    void stop() {
+        stopped = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        for (Socket socket: connections) {
+            closeQuietly(socket);
+        }
+        executor.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        while (!stopped) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!stopped) {
+                    System.err.println("Match protocol server stopped: " + e);
+                }
+                return;
+            }
+            connections.add(socket);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException e) {
+                        // The connection failed or was dropped: nothing to answer
+                    } finally {
+                        connections.remove(socket);
+                        closeQuietly(socket);
+                    }
+                }
+            });
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        for (byte[] frame = MatchProtocol.readFrame(in); frame != null; frame = MatchProtocol.readFrame(in)) {
+            MatchProtocol.writeFrame(out, respond(frame));
+            if (in.available() == 0) {
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * @return the response frame to a request frame
+     */
+    private ByteArrayOutputStream respond(byte[] frame) throws IOException {
+        DataInputStream request = new DataInputStream(new ByteArrayInputStream(frame));
+        ByteArrayOutputStream responseFrame = new ByteArrayOutputStream();
+        DataOutputStream response = new DataOutputStream(responseFrame);
+        int requestId = -1;
+        try {
+            requestId = request.readInt();
+            byte type = request.readByte();
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            if (type == MatchProtocol.TYPE_MATCH) {
+                writeMatches(request, new DataOutputStream(payload));
+            } else if (type == MatchProtocol.TYPE_CATALOG) {
+                writeCatalog(new DataOutputStream(payload));
+            } else {
+                throw new IOException("Unknown request type: " + type);
+            }
+            response.writeInt(requestId);
+            response.writeByte(MatchProtocol.STATUS_OK);
+            payload.writeTo(response);
+        } catch (Exception e) {
+            // A malformed request is answered with an error; the framing is intact
+            responseFrame.reset();
+            response.writeInt(requestId);
+            response.writeByte(MatchProtocol.STATUS_ERROR);
+            MatchProtocol.writeString(response, e instanceof EOFException ? "Request cut short" : String.valueOf(e.getMessage()));
+        }
+        return responseFrame;
+    }
+
+    private void writeMatches(DataInputStream request, DataOutputStream response) throws IOException {
+        int count = request.readInt();
+        if (count < 0) {
+            throw new IOException("Bad listing count: " + count);
+        }
+        List<Listing> listings = new ArrayList<Listing>(Math.min(count, 1 << 16));
+        for (int i = 0; i < count; i++) {
+            String manufacturer = MatchProtocol.readString(request);
+            String title = MatchProtocol.readString(request);
+            listings.add(new Listing(title, manufacturer, null, null));
+        }
+        ProductMatcher matcher = matcherSource.getMatcher();
+        MatchResult matches = matcher.matchAll(listings);
+        response.writeLong(matcher.getCatalogVersion());
+        response.writeInt(matches.getListingCount());
+        response.writeInt(matches.getMatchCount());
+        for (int i = 0; i <= matches.getListingCount(); i++) {
+            response.writeInt(i < matches.getListingCount() ? matches.getMatchStart(i) : matches.getMatchCount());
+        }
+        for (int pos = 0; pos < matches.getMatchCount(); pos++) {
+            response.writeInt(matches.getProductOrdinal(pos));
+        }
+    }
+
+    private void writeCatalog(DataOutputStream response) throws IOException {
+        ProductMatcher matcher = matcherSource.getMatcher();
+        response.writeLong(matcher.getCatalogVersion());
+        response.writeInt(matcher.getProductCount());
+        for (int i = 0; i < matcher.getProductCount(); i++) {
+            Product product = matcher.getProduct(i);
+            MatchProtocol.writeString(response, product != null ? product.getName() : null);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+}
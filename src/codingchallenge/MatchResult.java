@@ -0,0 +1,84 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+/**
+ * The products matched by a batch of listings.  Matches are kept in compressed
+ * row form: the ordinals of the products matching listing i are found at positions
+ * getMatchStart(i) up to, but excluding, getMatchEnd(i).
+ * 
+ * @author Shannon
+ *
+ */
+public class MatchResult {
+    private int[]   offsets;
+    private int[]   productOrdinals;
+
+    /**
+     * Match result
+     * @param offsets start of each listing's matches, plus the total number of matches
+     * @param productOrdinals the matching product ordinals, grouped by listing
+     */
+    public MatchResult(int[] offsets, int[] productOrdinals) {
+        this.offsets = offsets;
+        this.productOrdinals = productOrdinals;
+    }
+
+    /**
+     * @return the number of listings in the batch
+     */
+    public int getListingCount() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @param listing the listing's position in the batch
+     * @return the position of the listing's first match
+     */
+    public int getMatchStart(int listing) {
+        return offsets[listing];
+    }
+
+    /**
+     * @param listing the listing's position in the batch
+     * @return the position following the listing's last match
+     */
+    public int getMatchEnd(int listing) {
+        return offsets[listing + 1];
+    }
+
+    /**
+     * @param position the position of the match
+     * @return the ordinal of the matching product
+     */
+    public int getProductOrdinal(int position) {
+        return productOrdinals[position];
+    }
+
+    /**
+     * @return the total number of matches over all listings
+     */
+    public int getMatchCount() {
+        return productOrdinals.length;
+    }
+}
@@ -0,0 +1,225 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import com.sun.net.httpserver.*;
+
+/**
+ * HTTP matching service, on the JDK's built-in HTTP server.  Two endpoints:
+ * 
+ * <ul>
+ * <li><code>POST /match</code>: the body is one listing, and the response
+ * <code>{"catalog_version":N,"product_names":[...]}</code></li>
+ * <li><code>POST /match/batch</code>: the body is NDJSON listings, and the response
+ * streams one line per listing as written by {@link MatchDaemon}, in batches as
+ * the body is read</li>
+ * </ul>
+ * <p>
+ * Each request runs on a virtual thread of its own when the JDK has them, and
+ * otherwise on a cached thread pool.  Connections are kept alive between requests.
+ * All requests share the current matcher, which is thread-safe.
+ * 
+ * @author Shannon
+ *
+ */
+class MatchServer {
+    private static final Charset    UTF_8 = Charset.forName("UTF-8");
+    private static final int        BATCH_SIZE = 1000;
+    private static final String     NO_DELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+    private MatcherSource       matcherSource;
+    private HttpServer          server;
+    private ExecutorService     executor;
+
+    /**
+     * Match server, not yet started
+     * @param matcherSource supplies the matcher for each request
+     * @param port the port to listen on, 0 for any free port
+     * @throws IOException
+     */
+    MatchServer(MatcherSource matcherSource, int port) throws IOException {
+        this.matcherSource = matcherSource;
+        if (System.getProperty(NO_DELAY_PROPERTY) == null) {
+            // Small responses otherwise wait on Nagle's algorithm and delayed acks
+            System.setProperty(NO_DELAY_PROPERTY, "true");
+        }
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/match", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRequest(exchange, false);
+            }
+        });
+        server.createContext("/match/batch", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRequest(exchange, true);
+            }
+        });
+        executor = DaemonThreadFactory.newPerTaskExecutor("match-request-");
+        server.setExecutor(executor);
+    }
+
+    /**
+     * Starts serving requests
+     */
+    void start() {
+        server.start();
+    }
+
+    /**
+     * @return the port listened on
+     */
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops serving, letting requests in progress finish for up to a second
+     */
+    void stop() {
+        server.stop(1);
+        executor.shutdownNow();
+    }
+
+    private void handleRequest(HttpExchange exchange, boolean batch) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            if (!path.equals(batch ? "/match/batch" : "/match")) {
+                sendError(exchange, 404, "Not found: " + path);
+            } else if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendError(exchange, 405, "Method not allowed: " + exchange.getRequestMethod());
+            } else if (batch) {
+                matchBatch(exchange);
+            } else {
+                matchOne(exchange);
+            }
+        } catch (RuntimeException e) {
+            // Answers rather than dropping the exchange, if the response has not begun
+            if (exchange.getResponseCode() != -1) {
+                throw e;
+            }
+            sendError(exchange, 500, "Cannot match: " + e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void matchOne(HttpExchange exchange) throws IOException {
+        String line = readBody(exchange.getRequestBody()).trim();
+        Listing listing;
+        try {
+            listing = SortableChallenge.parseListing(line);
+        } catch (Exception e) {
+            sendError(exchange, 400, e.getMessage());
+            return;
+        }
+        ProductMatcher matcher = matcherSource.getMatcher();
+        MatchResult matches;
+        try {
+            matches = matcher.matchAll(Collections.singletonList(listing));
+        } catch (RuntimeException e) {
+            sendError(exchange, 400, "Cannot match listing: " + e);
+            return;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        JsonOutputSink out = new JsonOutputSink(Channels.newChannel(body), 4096);
+        out.writeAscii("{\"catalog_version\":");
+        out.writeLong(matcher.getCatalogVersion());
+        out.writeAscii(",\"product_names\":[");
+        for (int pos = matches.getMatchStart(0); pos < matches.getMatchEnd(0); pos++) {
+            if (pos > matches.getMatchStart(0)) {
+                out.write(',');
+            }
+            out.writeJsonString(matcher.getProduct(matches.getProductOrdinal(pos)).getName());
+        }
+        out.writeAscii("]}\n");
+        out.close();
+        sendBody(exchange, 200, body.toByteArray());
+    }
+
+    /**
+     * Streams the matches of NDJSON listings, a batch of lines at a time, with a
+     * chunked response
+     */
+    private void matchBatch(HttpExchange exchange) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), UTF_8));
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        JsonOutputSink out = new JsonOutputSink(Channels.newChannel(exchange.getResponseBody()), 64 << 10);
+        try {
+            List<String> lines = new ArrayList<String>(BATCH_SIZE);
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                line = line.trim();
+                if (line.length() == 0) {
+                    continue;
+                }
+                lines.add(line);
+                if (lines.size() == BATCH_SIZE) {
+                    MatchDaemon.writeMatches(lines, matcherSource.getMatcher(), out);
+                    out.flush();
+                    lines.clear();
+                }
+            }
+            MatchDaemon.writeMatches(lines, matcherSource.getMatcher(), out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+            body.write(buf, 0, n);
+        }
+        return new String(body.toByteArray(), UTF_8);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        // Drain the request, so the connection can be kept alive
+        readBody(exchange.getRequestBody());
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        JsonOutputSink out = new JsonOutputSink(Channels.newChannel(body), 4096);
+        out.writeAscii("{\"error\":");
+        out.writeJsonString(message);
+        out.writeAscii("}\n");
+        out.close();
+        sendBody(exchange, status, body.toByteArray());
+    }
+
+    private static void sendBody(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+}
@@ -0,0 +1,138 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Aggregates matches in memory: a list of listing ids per product name, with the
+ * listings themselves kept by a {@link ListingStore}.  With several output threads,
+ * the products are serialized in parallel by a {@link ParallelEntryWriter}.
+ * 
+ * @author Shannon
+ *
+ */
+class MemoryMatchAggregator implements MatchAggregator {
+    private Map<String,ProductMatches>  productToListings = new LinkedHashMap<String,ProductMatches>();
+    private ListingStore            listingStore;
+    private int                     outputThreads;
+
+    /**
+     * Memory match aggregator
+     * @param listingStore where to keep the matched listings
+     * @param outputThreads the number of threads serializing the output
+     */
+    MemoryMatchAggregator(ListingStore listingStore, int outputThreads) {
+        this.listingStore = listingStore;
+        this.outputThreads = outputThreads;
+    }
+
+    @Override
+    public boolean needsLineBytes() {
+        return listingStore.needsLineBytes();
+    }
+
+    @Override
+    public int addListing(byte[] line, long offset, int length) throws IOException {
+        return listingStore.add(line, offset, length);
+    }
+
+    @Override
+    public void addMatch(int listingId, Product product, long catalogVersion) {
+        ProductMatches matches = productToListings.get(product.getName());
+        if (matches == null) {
+            matches = new ProductMatches(product);
+            productToListings.put(product.getName(), matches);
+        }
+        matches.add(listingId, catalogVersion);
+    }
+
+    @Override
+    public void writeTo(EntryWriter writer) throws IOException {
+        if (outputThreads > 1) {
+            final List<ProductMatches> entries = new ArrayList<ProductMatches>(productToListings.values());
+            new ParallelEntryWriter(outputThreads).write(new ParallelEntryWriter.EntrySource() {
+                @Override
+                public int getEntryCount() {
+                    return entries.size();
+                }
+
+                @Override
+                public void writeEntry(int entry, EntryWriter writer) throws IOException {
+                    serializeEntry(entries.get(entry), writer);
+                }
+            }, writer);
+        } else {
+            for (ProductMatches entry: productToListings.values()) {
+                serializeEntry(entry, writer);
+            }
+        }
+        productToListings.clear();
+        listingStore.clear();
+    }
+
+    private void serializeEntry(ProductMatches entry, EntryWriter writer) throws IOException {
+        writer.beginEntry(entry.product);
+        for (int i = 0; i < entry.listingIds.size(); i++) {
+            long catalogVersion = entry.catalogVersions != null ? entry.catalogVersions.get(i) : 0;
+            listingStore.writeTo(entry.listingIds.get(i), writer.nextListing(catalogVersion));
+        }
+        writer.endEntry();
+    }
+
+    @Override
+    public void close() throws IOException {
+        listingStore.close();
+    }
+
+    /**
+     * The listings matched by one product name, and the catalog version that matched
+     * each one if tracked
+     */
+    private static class ProductMatches {
+        /**
+         * The product first matched under the name, written as the entry's product
+         */
+        final Product   product;
+        final IntList   listingIds = new IntList(4);
+        LongList        catalogVersions;
+
+        ProductMatches(Product product) {
+            this.product = product;
+        }
+
+        void add(int listingId, long catalogVersion) {
+            if (catalogVersion != 0 && catalogVersions == null) {
+                catalogVersions = new LongList(listingIds.size() + 4);
+                for (int i = 0; i < listingIds.size(); i++) {
+                    catalogVersions.add(0);
+                }
+            }
+            listingIds.add(listingId);
+            if (catalogVersions != null) {
+                catalogVersions.add(catalogVersion);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+ * Reads the lines of a byte stream, keeping track of the offset of each line in
+ * the stream, so reading can later be resumed from the end of any line.  Lines
+ * are split on newlines, and decoded as UTF-8.
+ * 
+ * @author Shannon
+ *
+ */
+class OffsetLineReader implements LineReader {
+    private InputStream     in;
+    private byte[]          buf = new byte[64 << 10];
+    private int             pos;
+    private int             limit;
+    private long            bufOffset;
+    private long            lineOffset;
+    private int             lineLength;
+    private byte[]          line = new byte[1024];
+    private CharsetDecoder  decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * Line reader
+     * @param in the stream, positioned at the given offset
+     * @param offset the offset of the first byte read
+     */
+    OffsetLineReader(InputStream in, long offset) {
+        this.in = in;
+        this.bufOffset = offset;
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        int length = 0;
+        lineOffset = bufOffset + pos;
+        while (true) {
+            if (pos == limit) {
+                bufOffset += limit;
+                pos = 0;
+                limit = Math.max(in.read(buf), 0);
+                if (limit == 0) {
+                    if (length == 0) {
+                        return null;
+                    }
+                    // Last line has no newline
+                    break;
+                }
+            }
+            int start = pos;
+            while (pos < limit && buf[pos] != '\n') {
+                pos++;
+            }
+            int count = pos - start;
+            if (length + count > line.length) {
+                byte[] bigger = new byte[Math.max(2 * line.length, length + count)];
+                System.arraycopy(line, 0, bigger, 0, length);
+                line = bigger;
+            }
+            System.arraycopy(buf, start, line, length, count);
+            length += count;
+            if (pos < limit) {
+                // Skips the newline
+                pos++;
+                break;
+            }
+        }
+        lineLength = length;
+        return decoder.decode(ByteBuffer.wrap(line, 0, length)).toString();
+    }
+
+    /**
+     * @return the stream offset of the line last read
+     */
+    @Override
+    public long getLineOffset() {
+        return lineOffset;
+    }
+
+    /**
+     * @return the length in bytes of the line last read, without its newline
+     */
+    @Override
+    public int getLineLength() {
+        return lineLength;
+    }
+}
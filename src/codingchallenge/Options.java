@@ -0,0 +1,289 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Command line options for {@link SortableChallenge}
+ * 
+ * @author Shannon
+ *
+ */
+class Options {
+    String      productsFileName;
+    String      listingsFileName;
+    List<String> listingsFileNames;
+    List<File>  listingsFiles;
+    boolean     watchProducts;
+    boolean     lazyIndexes;
+    long        indexMemoryBudget;
+    String      indexDirectory;
+    int         matchCacheSize;
+    int         threads = 1;
+    boolean     mapListings;
+    boolean     lowMemory;
+    long        spillMemoryBudget;
+    String      spillDirectory;
+    boolean     groupedByManufacturer;
+    String      outputDirectory;
+    int         partitions = 1;
+    boolean     partitionByManufacturer;
+    boolean     gzipOutput;
+    boolean     daemon;
+    long        maxFlushLatencyMillis = 20;
+    int         servePort;
+    int         binaryPort;
+    String      watchDirectory;
+    String      doneDirectory;
+    long        rollBytes = 256L << 20;
+    String      checkpointDirectory;
+    long        checkpointIntervalMillis = 60000;
+    boolean     resume;
+    String      resultStoreDirectory;
+    boolean     delta;
+
+    /**
+     * Parses the command line: options first, then the products and listings files
+     * @param args the command line arguments
+     * @return the parsed options
+     * @throws IllegalArgumentException if the command line is invalid
+     */
+    static Options parse(String[] args) {
+        Options options = new Options();
+        List<String> positional = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+            } else if (arg.equals("--watch-products")) {
+                options.watchProducts = true;
+            } else if (arg.equals("--lazy-indexes")) {
+                options.lazyIndexes = true;
+            } else if (arg.equals("--index-memory")) {
+                options.indexMemoryBudget = parseLong(arg, value(args, ++i)) << 20;
+            } else if (arg.equals("--match-cache")) {
+                options.matchCacheSize = (int) parseLong(arg, value(args, ++i));
+            } else if (arg.equals("--threads")) {
+                options.threads = (int) parseLong(arg, value(args, ++i));
+            } else if (arg.equals("--mmap")) {
+                options.mapListings = true;
+            } else if (arg.equals("--low-memory")) {
+                // Listing offsets are only known when reading through the mapping
+                options.lowMemory = true;
+                options.mapListings = true;
+            } else if (arg.equals("--spill-memory")) {
+                options.spillMemoryBudget = parseLong(arg, value(args, ++i)) << 20;
+            } else if (arg.equals("--grouped-by-manufacturer")) {
+                options.groupedByManufacturer = true;
+            } else if (arg.equals("--serve")) {
+                options.servePort = (int) parseLong(arg, value(args, ++i));
+            } else if (arg.equals("--serve-binary")) {
+                options.binaryPort = (int) parseLong(arg, value(args, ++i));
+            } else if (arg.equals("--daemon")) {
+                options.daemon = true;
+            } else if (arg.equals("--watch-dir")) {
+                options.watchDirectory = value(args, ++i);
+            } else if (arg.equals("--done-dir")) {
+                options.doneDirectory = value(args, ++i);
+            } else if (arg.equals("--roll-mb")) {
+                options.rollBytes = parseLong(arg, value(args, ++i)) << 20;
+            } else if (arg.equals("--checkpoint-dir")) {
+                options.checkpointDirectory = value(args, ++i);
+            } else if (arg.equals("--checkpoint-secs")) {
+                options.checkpointIntervalMillis = parseLong(arg, value(args, ++i)) * 1000;
+            } else if (arg.equals("--resume")) {
+                options.resume = true;
+            } else if (arg.equals("--result-store")) {
+                options.resultStoreDirectory = value(args, ++i);
+            } else if (arg.equals("--delta")) {
+                options.delta = true;
+            } else if (arg.equals("--flush-ms")) {
+                options.maxFlushLatencyMillis = parseLong(arg, value(args, ++i));
+            } else if (arg.equals("--gzip-output")) {
+                options.gzipOutput = true;
+            } else if (arg.equals("--output-dir")) {
+                options.outputDirectory = value(args, ++i);
+            } else if (arg.equals("--partitions")) {
+                options.partitions = (int) parseLong(arg, value(args, ++i));
+            } else if (arg.equals("--partition-by")) {
+                String scheme = value(args, ++i);
+                if (!scheme.equals("name") && !scheme.equals("manufacturer")) {
+                    throw new IllegalArgumentException("Bad value for " + arg + ": " + scheme);
+                }
+                options.partitionByManufacturer = scheme.equals("manufacturer");
+            } else if (arg.equals("--spill-dir")) {
+                options.spillDirectory = value(args, ++i);
+            } else if (arg.equals("--index-dir")) {
+                options.indexDirectory = value(args, ++i);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (options.outputDirectory == null && (options.partitions > 1 || options.partitionByManufacturer)) {
+            throw new IllegalArgumentException("Partitioned output needs --output-dir");
+        }
+        if (options.daemon && (options.mapListings || options.outputDirectory != null || options.gzipOutput
+                || options.spillMemoryBudget > 0 || options.groupedByManufacturer)) {
+            throw new IllegalArgumentException("--daemon writes matches as listings arrive, and takes no "
+                    + "--mmap, --low-memory, --spill-memory, --grouped-by-manufacturer or output options");
+        }
+        if (options.resume && options.checkpointDirectory == null) {
+            throw new IllegalArgumentException("--resume needs --checkpoint-dir");
+        }
+        if (options.checkpointDirectory != null && (options.daemon || options.servePort > 0 || options.binaryPort > 0
+                || options.watchDirectory != null || options.mapListings || options.groupedByManufacturer
+                || options.watchProducts)) {
+            throw new IllegalArgumentException("--checkpoint-dir takes no --daemon, servers, --watch-dir, --mmap, "
+                    + "--low-memory, --grouped-by-manufacturer or --watch-products");
+        }
+        if (options.delta && options.resultStoreDirectory == null) {
+            throw new IllegalArgumentException("--delta needs --result-store");
+        }
+        if (options.resultStoreDirectory != null && (options.daemon || options.servePort > 0 || options.binaryPort > 0
+                || options.watchDirectory != null || options.mapListings || options.groupedByManufacturer
+                || options.watchProducts || options.checkpointDirectory != null)) {
+            throw new IllegalArgumentException("--result-store takes no --daemon, servers, --watch-dir, --mmap, "
+                    + "--low-memory, --grouped-by-manufacturer, --watch-products or --checkpoint-dir");
+        }
+        if (options.watchDirectory != null) {
+            if (options.daemon || options.servePort > 0 || options.binaryPort > 0 || options.mapListings
+                    || options.gzipOutput || options.spillMemoryBudget > 0 || options.groupedByManufacturer
+                    || options.partitions > 1 || options.partitionByManufacturer) {
+                throw new IllegalArgumentException("--watch-dir writes matches as files arrive, and takes no --daemon, "
+                        + "servers, --mmap, --low-memory, --spill-memory, --grouped-by-manufacturer or output "
+                        + "options other than --output-dir");
+            }
+            if (positional.size() != 1) {
+                throw new IllegalArgumentException("Expected products file only when watching a directory");
+            }
+            options.productsFileName = positional.get(0);
+            return options;
+        }
+        if (options.servePort > 0 || options.binaryPort > 0) {
+            if (options.daemon || options.mapListings || options.outputDirectory != null || options.gzipOutput
+                    || options.spillMemoryBudget > 0 || options.groupedByManufacturer) {
+                throw new IllegalArgumentException("Servers take listings over the network, and take no --daemon, "
+                        + "--mmap, --low-memory, --spill-memory, --grouped-by-manufacturer or output options");
+            }
+            if (positional.size() != 1) {
+                throw new IllegalArgumentException("Expected products file only when serving");
+            }
+            options.productsFileName = positional.get(0);
+            return options;
+        }
+        if (positional.size() < 2) {
+            throw new IllegalArgumentException("Expected products and listings files");
+        }
+        options.productsFileName = positional.get(0);
+        options.listingsFileName = positional.get(1);
+        options.listingsFileNames = positional.subList(1, positional.size());
+        if (options.listingsFileNames.size() > 1 && options.listingsFileNames.contains("-")) {
+            throw new IllegalArgumentException("Standard input (-) must be the only listings file");
+        }
+        if (options.checkpointDirectory != null && options.listingsFileName.equals("-")) {
+            throw new IllegalArgumentException("--checkpoint-dir needs a listings file, not standard input");
+        }
+        if (options.resultStoreDirectory != null && options.listingsFileName.equals("-")) {
+            throw new IllegalArgumentException("--result-store needs listings files, not standard input");
+        }
+        return options;
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    private static long parseLong(String option, String value) {
+        try {
+            long result = Long.parseLong(value);
+            if (result <= 0) {
+                throw new IllegalArgumentException("Value for " + option + " must be positive: " + value);
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad value for " + option + ": " + value);
+        }
+    }
+
+    /**
+     * @return the option descriptions printed in the usage message
+     */
+    static String describe() {
+        return "  <listings>...      listings files, directories of them or globs such as\n"
+             + "                     'shards/*.json', each file read on a reader of its own\n"
+             + "  --serve PORT       serve matches over HTTP on PORT: POST /match with a listing,\n"
+             + "                     or /match/batch with NDJSON listings; give only the products file\n"
+             + "  --serve-binary PORT\n"
+             + "                     serve matches over the binary TCP protocol of MatchProtocol\n"
+             + "  --daemon           match listings as they arrive, writing one NDJSON line of\n"
+             + "                     catalog version and matching product names per listing;\n"
+             + "                     a listings file of - reads standard input\n"
+             + "  --watch-dir DIR    match listings files as they are moved into DIR, appending\n"
+             + "                     the matches as with --daemon to rolling files in --output-dir\n"
+             + "                     (default: DIR/output); give only the products file\n"
+             + "  --done-dir DIR     with --watch-dir, where matched files are moved (default: DIR/done)\n"
+             + "  --roll-mb N        with --watch-dir, start a new output file after N megabytes\n"
+             + "                     (default: 256)\n"
+             + "  --checkpoint-dir DIR\n"
+             + "                     checkpoint the run in DIR as it goes, so that it can be resumed\n"
+             + "  --checkpoint-secs N\n"
+             + "                     checkpoint every N seconds (default: 60)\n"
+             + "  --resume           resume from the checkpoint in --checkpoint-dir, if any; the\n"
+             + "                     output is as if the run had not been interrupted\n"
+             + "  --result-store DIR keep the matches in DIR, and match only the listings files\n"
+             + "                     and appended listings not matched by earlier runs; output\n"
+             + "                     is as if all listings were matched in the order added\n"
+             + "  --delta            with --result-store, output only the products that gained\n"
+             + "                     listings, each with all its listings\n"
+             + "  --flush-ms N       with --daemon, flush matches at most N milliseconds after\n"
+             + "                     they are written (default: 20)\n"
+             + "  --threads N        parse and match listings on N threads (default: 1)\n"
+             + "  --mmap             memory map the listings file, each thread reading its own parts\n"
+             + "  --low-memory       keep only the file offsets of matched listings, re-reading\n"
+             + "                     them from the listings file on output (implies --mmap)\n"
+             + "  --spill-memory MB  keep matches within about MB megabytes, spilling sorted runs\n"
+             + "                     to disk and merging them on output\n"
+             + "  --spill-dir DIR    where spilled runs are written (default: a temporary directory)\n"
+             + "  --grouped-by-manufacturer\n"
+             + "                     the listings are grouped by manufacturer: output each\n"
+             + "                     manufacturer's products as soon as its listings end\n"
+             + "  --gzip-output      gzip the output, compressing blocks on --threads threads\n"
+             + "  --output-dir DIR   write the output as partition files and a manifest in DIR\n"
+             + "  --partitions N     number of partition files (default: 1)\n"
+             + "  --partition-by name|manufacturer\n"
+             + "                     partition by hash of product name (default) or manufacturer\n"
+             + "  --watch-products   rebuild the matcher whenever the products file changes,\n"
+             + "                     tagging each listing with the catalog version that matched it\n"
+             + "  --lazy-indexes     build each manufacturer's indexes when first needed\n"
+             + "  --index-memory MB  keep manufacturer indexes within about MB megabytes,\n"
+             + "                     paging the least recently used out to disk\n"
+             + "  --index-dir DIR    where paged out indexes are written (default: a temporary directory)\n"
+             + "  --match-cache N    cache the results of up to N distinct listing titles, for\n"
+             + "                     inputs that repeat titles\n";
+    }
+}
@@ -0,0 +1,127 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Serializes product entries on several threads.  The entries are split into
+ * chunks of consecutive entries; each worker serializes a chunk into byte blocks
+ * of its own, and the calling thread writes the completed chunks in chunk order,
+ * their blocks with gathering writes.  The output is then the same as writing the entries
+ * one after the other.  Only a few chunks ahead of the one being written are
+ * serialized at a time, which bounds the memory held in blocks.
+ * 
+ * @author Shannon
+ *
+ */
+class ParallelEntryWriter {
+    /**
+     * Entries to serialize, by index
+     */
+    interface EntrySource {
+        /**
+         * @return the number of entries
+         */
+        int getEntryCount();
+
+        /**
+         * Writes an entry.  Called from several threads at once.
+         * @param entry the index of the entry
+         * @param writer where to write the entry
+         * @throws IOException
+         */
+        void writeEntry(int entry, EntryWriter writer) throws IOException;
+    }
+
+    private static final int    CHUNK_SIZE = 256;
+
+    private int     threads;
+
+    /**
+     * Parallel entry writer
+     * @param threads the number of serializing threads
+     */
+    ParallelEntryWriter(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Writes all the entries of a source
+     * @param source the entries
+     * @param writer where to write them
+     * @throws IOException
+     */
+    void write(final EntrySource source, final EntryWriter writer) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("entry-serializer-"));
+        try {
+            Deque<Future<EntryWriter>> pending = new ArrayDeque<Future<EntryWriter>>();
+            int entryCount = source.getEntryCount();
+            int next = 0;
+            while (next < entryCount || !pending.isEmpty()) {
+                while (next < entryCount && pending.size() < 2 * threads) {
+                    final int start = next;
+                    final int end = Math.min(entryCount, start + CHUNK_SIZE);
+                    pending.add(executor.submit(new Callable<EntryWriter>() {
+                        @Override
+                        public EntryWriter call() throws IOException {
+                            return serializeChunk(source, start, end, writer);
+                        }
+                    }));
+                    next = end;
+                }
+                writer.writeChunk(await(pending.removeFirst()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static EntryWriter serializeChunk(EntrySource source, int start, int end, EntryWriter writer) throws IOException {
+        EntryWriter chunk = writer.newChunk();
+        for (int entry = start; entry < end; entry++) {
+            source.writeEntry(entry, chunk);
+        }
+        return chunk;
+    }
+
+    private static EntryWriter await(Future<EntryWriter> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted writing entries");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Channel writing one output partition file on a writer thread of its own, so that
+ * partitions are written to disk concurrently.  Blocks written to the channel are
+ * queued to the writer thread, which keeps a checksum and count of the bytes as it
+ * writes them.  A failure of the writer thread is rethrown by the next write, or by
+ * {@link #close()}.
+ * 
+ * @author Shannon
+ *
+ */
+class PartitionFile implements WritableByteChannel {
+    /**
+     * Blocks queued ahead of the writer thread before writes wait for it
+     */
+    private static final int        QUEUE_SIZE = 8;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private File                    file;
+    private FileChannel             channel;
+    private BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<ByteBuffer>(QUEUE_SIZE);
+    private Thread                  writerThread;
+    private CRC32                   checksum = new CRC32();
+    private long                    size;
+    private volatile Throwable      failure;
+    private boolean                 open = true;
+
+    /**
+     * Partition file, created or truncated
+     * @param file the file
+     * @throws IOException
+     */
+    PartitionFile(File file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeQueued();
+            }
+        }, "partition-writer-" + file.getName());
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        checkFailure();
+        ByteBuffer block = ByteBuffer.allocate(src.remaining());
+        block.put(src);
+        block.flip();
+        put(block);
+        return block.limit();
+    }
+
+    private void writeQueued() {
+        try {
+            for (ByteBuffer block = queue.take(); block != END; block = queue.take()) {
+                if (failure != null) {
+                    // Keep taking blocks, so writes do not wait for ever
+                    continue;
+                }
+                try {
+                    checksum.update(block.duplicate());
+                    size += block.remaining();
+                    while (block.hasRemaining()) {
+                        channel.write(block);
+                    }
+                } catch (Throwable t) {
+                    failure = t;
+                }
+            }
+        } catch (InterruptedException e) {
+            failure = e;
+        }
+    }
+
+    private void put(ByteBuffer block) throws IOException {
+        try {
+            queue.put(block);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted writing " + file);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure;
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t != null) {
+            throw new IOException("Failed writing " + file, t);
+        }
+    }
+
+    /**
+     * @return the partition file
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of bytes written; final once closed
+     */
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the CRC-32 of the bytes written; final once closed
+     */
+    long getChecksum() {
+        return checksum.getValue();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Waits for the queued blocks to be written, and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            put(END);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted writing " + file);
+        } finally {
+            channel.close();
+        }
+        checkFailure();
+    }
+}
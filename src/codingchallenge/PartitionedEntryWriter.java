@@ -0,0 +1,182 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Writes the output as several partition files in a directory, instead of one
+ * stream.  Products are assigned to partitions by a hash of their name, or of their
+ * manufacturer, which keeps each manufacturer's products together.  Each partition
+ * file is written by a thread of its own (see {@link PartitionFile}), and may be
+ * gzipped on the way (see {@link GzipMemberChannel}).
+ * <p>
+ * On close, a manifest is written next to the partitions, giving each one's file
+ * name, number of records, size in bytes and CRC-32.
+ * 
+ * @author Shannon
+ *
+ */
+class PartitionedEntryWriter implements EntryWriter {
+    static final String     MANIFEST_FILE_NAME = "manifest.json";
+
+    private File                    directory;
+    private boolean                 byManufacturer;
+    private ProductEntryWriter[]    partitions;
+    private PartitionFile[]         files;
+    private ProductEntryWriter      current;
+
+    private PartitionedEntryWriter(File directory, boolean byManufacturer, ProductEntryWriter[] partitions, PartitionFile[] files) {
+        this.directory = directory;
+        this.byManufacturer = byManufacturer;
+        this.partitions = partitions;
+        this.files = files;
+    }
+
+    /**
+     * Creates the partition files
+     * @param directory where to write the partitions and manifest, created if needed
+     * @param partitionCount the number of partitions
+     * @param byManufacturer true to partition by manufacturer, false by product name
+     * @param compressor the threads gzipping the partitions, or null to leave them uncompressed
+     * @param maxPending the most blocks compressed at a time per partition
+     * @return the writer
+     * @throws IOException
+     */
+    static PartitionedEntryWriter open(File directory, int partitionCount, boolean byManufacturer,
+            ExecutorService compressor, int maxPending) throws IOException {
+        Files.createDirectories(directory.toPath());
+        ProductEntryWriter[] partitions = new ProductEntryWriter[partitionCount];
+        PartitionFile[] files = new PartitionFile[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            String fileName = String.format("part-%05d.json", i) + (compressor != null ? ".gz" : "");
+            files[i] = new PartitionFile(new File(directory, fileName));
+            WritableByteChannel channel = files[i];
+            if (compressor != null) {
+                channel = new GzipMemberChannel(channel, compressor, maxPending);
+            }
+            partitions[i] = new ProductEntryWriter(new JsonOutputSink(channel));
+        }
+        return new PartitionedEntryWriter(directory, byManufacturer, partitions, files);
+    }
+
+    private int partitionOf(Product product) {
+        String key = byManufacturer ? product.getManufacturer().toLowerCase() : product.getName();
+        int hash = key != null ? key.hashCode() : 0;
+        return (hash & 0x7fffffff) % partitions.length;
+    }
+
+    @Override
+    public void beginEntry(Product product) throws IOException {
+        current = partitions[partitionOf(product)];
+        current.beginEntry(product);
+    }
+
+    @Override
+    public OutputStream nextListing(long catalogVersion) throws IOException {
+        return current.nextListing(catalogVersion);
+    }
+
+    @Override
+    public void endEntry() throws IOException {
+        current.endEntry();
+    }
+
+    @Override
+    public EntryWriter newChunk() {
+        ProductEntryWriter[] chunkPartitions = new ProductEntryWriter[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            chunkPartitions[i] = (ProductEntryWriter) partitions[i].newChunk();
+        }
+        return new PartitionedEntryWriter(directory, byManufacturer, chunkPartitions, null);
+    }
+
+    @Override
+    public void writeChunk(EntryWriter chunk) throws IOException {
+        PartitionedEntryWriter chunkWriter = (PartitionedEntryWriter) chunk;
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].writeChunk(chunkWriter.partitions[i]);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (ProductEntryWriter partition: partitions) {
+            partition.flush();
+        }
+    }
+
+    /**
+     * Closes the partitions, waiting for them to be written, and writes the manifest
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (ProductEntryWriter partition: partitions) {
+            try {
+                partition.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (files != null) {
+            writeManifest();
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        File manifestFile = new File(directory, MANIFEST_FILE_NAME);
+        JsonOutputSink out = new JsonOutputSink(new FileOutputStream(manifestFile).getChannel(), 1 << 16);
+        try {
+            out.writeAscii("{\"partitioned_by\":");
+            out.writeJsonString(byManufacturer ? "manufacturer" : "product_name");
+            out.writeAscii(",\"partitions\":[");
+            for (int i = 0; i < files.length; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.writeAscii("\n{\"file\":");
+                out.writeJsonString(files[i].getFile().getName());
+                out.writeAscii(",\"records\":");
+                out.writeLong(partitions[i].getEntryCount());
+                out.writeAscii(",\"bytes\":");
+                out.writeLong(files[i].getSize());
+                out.writeAscii(",\"crc32\":");
+                out.writeJsonString(String.format("%08x", files[i].getChecksum()));
+                out.write('}');
+            }
+            out.writeAscii("\n]}\n");
+        } finally {
+            out.close();
+        }
+    }
+}
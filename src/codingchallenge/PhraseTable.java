@@ -0,0 +1,206 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Hash table from the normalized token sequence of each document to the ids of
+ * the documents with that sequence.  Gives the same best matches as a
+ * {@link SimpleTextIndex} over the same documents, by probing the table with every
+ * run of query tokens up to the length of the longest document, without walking
+ * any postings.
+ * <p>
+ * A {@link SimpleTextIndex} document matches when its tokens appear as a
+ * contiguous run of the query and the number of query tokens found in it equals
+ * its size.  Given the run is present, the latter holds exactly when each of the
+ * document's tokens occurs once in the query.
+ * 
+ * @author Shannon
+ *
+ */
+public class PhraseTable {
+    private Map<String,List<Integer>>   phraseToDocIds = new HashMap<String,List<Integer>>();
+    private int                         maxPhraseLength;
+
+    /**
+     * Adds a document to the table
+     * @param docId the id of the added document
+     * @param tokens the document tokens
+     */
+    public void add(Integer docId, List<String> tokens) {
+        String phrase = join(tokens, 0, tokens.size());
+        List<Integer> docIds = phraseToDocIds.get(phrase);
+        if (docIds == null) {
+            docIds = new ArrayList<Integer>(1);
+            phraseToDocIds.put(phrase, docIds);
+        }
+        docIds.add(docId);
+        maxPhraseLength = Math.max(maxPhraseLength, tokens.size());
+    }
+
+    /**
+     * Appends the documents of another table to this one
+     * @param other the table whose documents are appended, left unchanged
+     */
+    public void append(PhraseTable other) {
+        for (Map.Entry<String,List<Integer>> entry: other.phraseToDocIds.entrySet()) {
+            List<Integer> docIds = phraseToDocIds.get(entry.getKey());
+            if (docIds == null) {
+                docIds = new ArrayList<Integer>(entry.getValue().size());
+                phraseToDocIds.put(entry.getKey(), docIds);
+            }
+            docIds.addAll(entry.getValue());
+        }
+        maxPhraseLength = Math.max(maxPhraseLength, other.maxPhraseLength);
+    }
+
+    /**
+     * Writes the table in a form read back by {@link #readFrom(DataInput)}
+     * @param out where to write the table
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(maxPhraseLength);
+        out.writeInt(phraseToDocIds.size());
+        for (Map.Entry<String,List<Integer>> entry: phraseToDocIds.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (Integer docId: entry.getValue()) {
+                out.writeInt(docId);
+            }
+        }
+    }
+
+    /**
+     * Reads a table written by {@link #writeTo(DataOutput)}
+     * @param in where to read the table from
+     * @return the table
+     * @throws IOException
+     */
+    public static PhraseTable readFrom(DataInput in) throws IOException {
+        PhraseTable table = new PhraseTable();
+        table.maxPhraseLength = in.readInt();
+        int phraseCount = in.readInt();
+        for (int i = 0; i < phraseCount; i++) {
+            String phrase = in.readUTF();
+            int cnt = in.readInt();
+            List<Integer> docIds = new ArrayList<Integer>(cnt);
+            for (int j = 0; j < cnt; j++) {
+                docIds.add(in.readInt());
+            }
+            table.phraseToDocIds.put(phrase, docIds);
+        }
+        return table;
+    }
+
+    /**
+     * @return a rough estimate of the heap used by the table, in bytes
+     */
+    public long getEstimatedSize() {
+        long size = 0;
+        for (Map.Entry<String,List<Integer>> entry: phraseToDocIds.entrySet()) {
+            size += 40 + 2 * entry.getKey().length() + 32 + 40 + 20 * entry.getValue().size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of tokens in the longest document, which bounds the runs probed per query
+     */
+    public int getMaxPhraseLength() {
+        return maxPhraseLength;
+    }
+
+    /**
+     * Finds the documents that are contiguous runs of the query, each of whose tokens
+     * occurs once in the query, keeping those with the most tokens
+     * @param queryTokens the query tokens
+     * @return the ids of the best matching documents
+     */
+    public Set<Integer> bestMatches(List<String> queryTokens) {
+        Set<Integer> bestMatchingDocs = new HashSet<Integer>();
+        Map<String,Integer> tokenCounts = null;
+        int mostMatches = 0;
+        int queryLength = queryTokens.size();
+        for (int start = 0; start < queryLength; start++) {
+            int maxLength = Math.min(maxPhraseLength, queryLength - start);
+            StringBuilder buf = new StringBuilder();
+            for (int length = 1; length <= maxLength; length++) {
+                if (length > 1) {
+                    buf.append(' ');
+                }
+                buf.append(queryTokens.get(start + length - 1));
+                if (length < mostMatches) {
+                    continue;
+                }
+                List<Integer> docIds = phraseToDocIds.get(buf.toString());
+                if (docIds == null) {
+                    continue;
+                }
+                if (tokenCounts == null) {
+                    tokenCounts = countTokens(queryTokens);
+                }
+                if (!occurOnce(queryTokens, start, start + length, tokenCounts)) {
+                    continue;
+                }
+                if (length > mostMatches) {
+                    bestMatchingDocs.clear();
+                    mostMatches = length;
+                }
+                bestMatchingDocs.addAll(docIds);
+            }
+        }
+        return bestMatchingDocs;
+    }
+
+    private static boolean occurOnce(List<String> tokens, int from, int to, Map<String,Integer> tokenCounts) {
+        for (int i = from; i < to; i++) {
+            if (tokenCounts.get(tokens.get(i)) != 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<String,Integer> countTokens(List<String> tokens) {
+        Map<String,Integer> tokenCounts = new HashMap<String,Integer>();
+        for (String token: tokens) {
+            Integer count = tokenCounts.get(token);
+            tokenCounts.put(token, count == null ? 1 : count + 1);
+        }
+        return tokenCounts;
+    }
+
+    private static String join(List<String> tokens, int from, int to) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                buf.append(' ');
+            }
+            buf.append(tokens.get(i));
+        }
+        return buf.toString();
+    }
+}
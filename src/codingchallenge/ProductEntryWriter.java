@@ -0,0 +1,125 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+
+/**
+ * Writes the output: one JSON object per product, holding its name and the raw
+ * lines of its listings.  When catalog versions are tracked, the object also holds
+ * a "catalog_versions" array parallel to "listings", giving the version of the
+ * catalog that matched each listing (0 where it is not known).
+ * 
+ * @author Shannon
+ *
+ */
+class ProductEntryWriter implements EntryWriter {
+    /**
+     * Buffer size of chunks, and so the size of their blocks
+     */
+    private static final int    CHUNK_BLOCK_SIZE = 64 << 10;
+
+    private JsonOutputSink      out;
+    private ByteBlockChannel    chunkBlocks;
+    private LongList            catalogVersions;
+    private boolean             catalogVersionsTracked;
+    private long                entryCount;
+
+    /**
+     * Product entry writer
+     * @param out where to write the entries
+     */
+    ProductEntryWriter(JsonOutputSink out) {
+        this.out = out;
+    }
+
+    @Override
+    public EntryWriter newChunk() {
+        ByteBlockChannel blocks = new ByteBlockChannel();
+        ProductEntryWriter chunk = new ProductEntryWriter(new JsonOutputSink(blocks, CHUNK_BLOCK_SIZE));
+        chunk.chunkBlocks = blocks;
+        return chunk;
+    }
+
+    @Override
+    public void writeChunk(EntryWriter chunk) throws IOException {
+        ProductEntryWriter chunkWriter = (ProductEntryWriter) chunk;
+        chunkWriter.flush();
+        out.writeBlocks(chunkWriter.chunkBlocks.getBlocks());
+        entryCount += chunkWriter.entryCount;
+    }
+
+    /**
+     * @return the number of entries written
+     */
+    long getEntryCount() {
+        return entryCount;
+    }
+
+    @Override
+    public void beginEntry(Product product) throws IOException {
+        out.writeAscii("{\"product_name\":");
+        out.writeJsonString(product.getName());
+        out.writeAscii(",\"listings\":[");
+        catalogVersions = new LongList(4);
+        catalogVersionsTracked = false;
+        entryCount++;
+    }
+
+    @Override
+    public OutputStream nextListing(long catalogVersion) throws IOException {
+        if (catalogVersions.size() > 0) {
+            out.write(',');
+        }
+        catalogVersions.add(catalogVersion);
+        catalogVersionsTracked |= catalogVersion != 0;
+        return out;
+    }
+
+    @Override
+    public void endEntry() throws IOException {
+        out.write(']');
+        if (catalogVersionsTracked) {
+            out.writeAscii(",\"catalog_versions\":[");
+            for (int i = 0; i < catalogVersions.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.writeLong(catalogVersions.get(i));
+            }
+            out.write(']');
+        }
+        out.write('}');
+        out.write('\n');
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -22,7 +22,10 @@ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
 SOFTWARE.
 */
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * Matches products to listings.  Indexes are kept on a per manufacturer basis.
@@ -32,8 +35,29 @@ import java.util.*;
  */
 public class ProductMatcher {
     private List<Product>           productList			= new ArrayList<Product>();
-    private Map<String,TextIndex>   manufacturerToIndex	= new HashMap<String,TextIndex>();
+    private Map<String,ManufacturerIndex>   manufacturerToIndex	= new HashMap<String,ManufacturerIndex>();
     private Tokenizer				tokenizer;
+    private int						parallelism			= Runtime.getRuntime().availableProcessors();
+    private MatchCache				matchCache;
+    private long					catalogVersion;
+    private boolean					lazy;
+    private IndexPager				indexPager;
+
+    /**
+     * Manufacturers with more products than this have their indexes built in parts
+     */
+    private static final int		SPLIT_THRESHOLD		= 4096;
+
+    /**
+     * Manufacturers with longer models or families are not matched through phrase
+     * tables, as each query would need too many probes
+     */
+    private static final int		MAX_PHRASE_LENGTH	= 8;
+
+    private static final int[]		NO_MATCHES			= new int[0];
+
+    private AtomicLong				exactMatchCount		= new AtomicLong();
+    private AtomicLong				indexMatchCount		= new AtomicLong();
 
     /**
      * Product matcher
@@ -41,7 +65,25 @@ public class ProductMatcher {
      * @param tokenizer for tokenizing product names and listing titles
      */
     public ProductMatcher(Tokenizer tokenizer) {
+        this(tokenizer, 1);
+    }
+
+    /**
+     * Product matcher
+     * 
+     * @param tokenizer for tokenizing product names and listing titles
+     * @param catalogVersion the version of the catalog the matcher is built from
+     */
+    public ProductMatcher(Tokenizer tokenizer, long catalogVersion) {
         this.tokenizer = tokenizer;
+        this.catalogVersion = catalogVersion;
+    }
+
+    /**
+     * @return the version of the catalog the matcher is built from
+     */
+    public long getCatalogVersion() {
+        return catalogVersion;
     }
     
     /**
@@ -51,12 +93,11 @@ public class ProductMatcher {
      */
     public Set<Product> getMatches(Listing listing) {
         Set<Product> matchingProducts = new HashSet<Product>();
-        TextIndex index =  indexForListing(listing);
-        if (index == null) {
+        String manu = manufacturerForListing(listing);
+        if (manu == null) {
             return Collections.emptySet();
         }
-        String title = listing.getTitle();
-        for (Integer productId: index.bestMatches(title)) {
+        for (int productId: matchOrdinals(manu, listing.getTitle())) {
             Product product = productList.get(productId);
             if (product == null) {
                 continue;
@@ -67,62 +108,504 @@ public class ProductMatcher {
     }
 
     /**
-     * Creates search indexes over the given products 
+     * Finds the products matching each of a batch of listings.  The listings are
+     * grouped by manufacturer so that each manufacturer's index is searched for
+     * all of its listings in turn.
+     * @param listings the listings to find
+     * @return the ordinals of the products matching each listing, in listing order
+     */
+    public MatchResult matchAll(List<Listing> listings) {
+        Map<String,List<Integer>> manufacturerToListings = new LinkedHashMap<String,List<Integer>>();
+        for (int i = 0; i < listings.size(); i++) {
+            String manu = manufacturerForListing(listings.get(i));
+            if (manu == null) {
+                continue;
+            }
+            List<Integer> ordinals = manufacturerToListings.get(manu);
+            if (ordinals == null) {
+                ordinals = new ArrayList<Integer>();
+                manufacturerToListings.put(manu, ordinals);
+            }
+            ordinals.add(i);
+        }
+
+        int[][] listingMatches = new int[listings.size()][];
+        int matchCount = 0;
+        for (Map.Entry<String,List<Integer>> entry: manufacturerToListings.entrySet()) {
+            String manu = entry.getKey();
+            for (Integer ordinal: entry.getValue()) {
+                int[] matches = matchOrdinals(manu, listings.get(ordinal).getTitle());
+                listingMatches[ordinal] = matches;
+                matchCount += matches.length;
+            }
+        }
+
+        int[] offsets = new int[listings.size() + 1];
+        int[] productOrdinals = new int[matchCount];
+        int pos = 0;
+        for (int i = 0; i < listingMatches.length; i++) {
+            offsets[i] = pos;
+            int[] matches = listingMatches[i];
+            if (matches != null) {
+                System.arraycopy(matches, 0, productOrdinals, pos, matches.length);
+                pos += matches.length;
+            }
+        }
+        offsets[listingMatches.length] = pos;
+        return new MatchResult(offsets, productOrdinals);
+    }
+
+    /**
+     * Finds the products matching each of a batch of listings
+     * @param listings the listings to find
+     * @return the ordinals of the products matching each listing, in listing order
+     */
+    public MatchResult matchAll(Listing[] listings) {
+        return matchAll(Arrays.asList(listings));
+    }
+
+    /**
+     * Gets a product by its ordinal, the position of the product in the catalog
+     * @param ordinal the product ordinal
+     * @return the product
+     */
+    public Product getProduct(int ordinal) {
+        return productList.get(ordinal);
+    }
+
+    /**
+     * @return the number of products in the catalog
+     */
+    public int getProductCount() {
+        return productList.size();
+    }
+
+    /**
+     * Creates search indexes over the given products.  Product ids are assigned in
+     * catalog order, then the products are partitioned by manufacturer and each
+     * manufacturer's indexes are built in parallel.  In lazy mode, each manufacturer's
+     * indexes are instead built the first time one of its listings is matched.
      * @param products the products over which to create indices
      */
     public void initProducts(Iterable<Product> products) {
-        Map<String,SimpleTextIndex> manufacturerToFamilyIndex = new HashMap<String,SimpleTextIndex>();
-        Map<String,SimpleTextIndex> manufacturerToModelIndex = new HashMap<String,SimpleTextIndex>();
-        Map<String,Set<Integer>> manufacturerToNoFamily = new HashMap<String,Set<Integer>>();
+        Map<String,List<Integer>> manufacturerToProductIds = new LinkedHashMap<String,List<Integer>>();
         for (Product product: products) {
             int prodId = productList.size();
             productList.add(product);
 
             String manu = product.getManufacturer().toLowerCase();
-
-            SimpleTextIndex index = manufacturerToFamilyIndex.get(manu);
-            if (index == null) {
-                index = createSimpleIndex();
-                manufacturerToFamilyIndex.put(manu, index);
+            List<Integer> prodIds = manufacturerToProductIds.get(manu);
+            if (prodIds == null) {
+                prodIds = new ArrayList<Integer>();
+                manufacturerToProductIds.put(manu, prodIds);
             }
+            prodIds.add(prodId);
+        }
+
+        Map<String,ManufacturerIndex> indexes = new LinkedHashMap<String,ManufacturerIndex>();
+        for (Map.Entry<String,List<Integer>> entry: manufacturerToProductIds.entrySet()) {
+            indexes.put(entry.getKey(), new ManufacturerIndex(entry.getValue()));
+        }
+        if (!lazy && indexPager == null) {
+            buildIndexes(indexes.values());
+        }
+        manufacturerToIndex.putAll(indexes);
+        if (matchCache != null) {
+            matchCache.invalidate();
+        }
+    }
+
+    /**
+     * @return the number of titles matched through the phrase tables alone
+     */
+    public long getExactMatchCount() {
+        return exactMatchCount.get();
+    }
+
+    /**
+     * @return the number of titles that needed a search of the full indexes
+     */
+    public long getIndexMatchCount() {
+        return indexMatchCount.get();
+    }
+
+    /**
+     * Carries on the statistics of the matcher this one replaces, so that they cover
+     * every matcher used in a run: the match counts, and the counts of the match
+     * cache and index pager when both matchers have them.  Call before this matcher
+     * is used.  The counters are shared rather than copied, so matches still being
+     * made by the replaced matcher are counted too.
+     * @param previous the replaced matcher
+     */
+    public void continueStatistics(ProductMatcher previous) {
+        exactMatchCount = previous.exactMatchCount;
+        indexMatchCount = previous.indexMatchCount;
+        if (matchCache != null && previous.matchCache != null) {
+            matchCache.continueStatistics(previous.matchCache);
+        }
+        if (indexPager != null && previous.indexPager != null) {
+            indexPager.continueStatistics(previous.indexPager);
+        }
+    }
+
+    /**
+     * Sets the cache of match results, or null for no caching.  The cache is
+     * invalidated each time products are added to the matcher.
+     * @param matchCache the cache of match results
+     */
+    public void setMatchCache(MatchCache matchCache) {
+        this.matchCache = matchCache;
+    }
+
+    /**
+     * @return the cache of match results, or null if results are not cached
+     */
+    public MatchCache getMatchCache() {
+        return matchCache;
+    }
+
+    /**
+     * Builds the indexes of the given manufacturers in parallel
+     */
+    private void buildIndexes(Collection<ManufacturerIndex> indexes) {
+        List<IndexBuildTask> tasks = new ArrayList<IndexBuildTask>();
+        for (ManufacturerIndex index: indexes) {
+            tasks.add(new IndexBuildTask(index.prodIds, 0, index.prodIds.size()));
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new IndexBuildBatch(tasks));
+        } finally {
+            pool.shutdown();
+        }
+        int i = 0;
+        for (ManufacturerIndex index: indexes) {
+            index.index = createProductsIndex(tasks.get(i++).join());
+        }
+    }
+
+    private ProductsIndex createProductsIndex(PartialIndex partial) {
+        TokenBloomFilter modelTokenFilter = new TokenBloomFilter(partial.modelIndex.getVocabulary());
+        ProductsIndex productIndex = new ProductsIndex(partial.modelIndex, partial.familyIndex, partial.noFamilySet,
+                modelTokenFilter);
+        if (partial.modelPhrases.getMaxPhraseLength() <= MAX_PHRASE_LENGTH
+                && partial.familyPhrases.getMaxPhraseLength() <= MAX_PHRASE_LENGTH) {
+            productIndex.setPhraseTables(partial.modelPhrases, partial.familyPhrases);
+        }
+        return productIndex;
+    }
+
+    /**
+     * Sets whether manufacturer indexes are built on first use rather than by
+     * {@link #initProducts(Iterable)}.  Lazy building suits runs over few listings,
+     * which only pay for the manufacturers they mention.
+     * @param lazy true to build indexes on first use
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    /**
+     * Sets the pager keeping the resident manufacturer indexes within a memory
+     * budget, or null to keep all indexes in memory.  Paged indexes are built on
+     * first use, as in lazy mode.
+     * @param indexPager the index pager
+     */
+    public void setIndexPager(IndexPager indexPager) {
+        this.indexPager = indexPager;
+    }
+
+    /**
+     * @return the index pager, or null if all indexes are kept in memory
+     */
+    public IndexPager getIndexPager() {
+        return indexPager;
+    }
+
+    /**
+     * Sets the number of threads used for building indexes
+     * @param parallelism the number of index building threads
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+    
+    private SimpleTextIndex createSimpleIndex() {
+    	return new SimpleTextIndex(tokenizer);
+    }
+
+    /**
+     * Indexes a contiguous run of one manufacturer's products
+     */
+    private PartialIndex buildPartialIndex(List<Integer> prodIds, int from, int to) {
+        PartialIndex partial = new PartialIndex();
+        for (int i = from; i < to; i++) {
+            int prodId = prodIds.get(i);
+            Product product = productList.get(prodId);
             String family = product.getFamily();
             if (family != null) {
-            	index.index(prodId, product.getFamily());
+            	List<String> tokens = toList(tokenizer.tokenize(family));
+            	partial.familyIndex.index(prodId, tokens);
+            	partial.familyPhrases.add(prodId, tokens);
             } else {
-            	Set<Integer> noFamilySet = manufacturerToNoFamily.get(manu);
-            	if (noFamilySet == null) {
-            		noFamilySet = new HashSet<Integer>();
-            		manufacturerToNoFamily.put(manu, noFamilySet);
-            	}
-            	noFamilySet.add(prodId);
-            }
-
-            index = manufacturerToModelIndex.get(manu);
-            if (index == null) {
-                index = createSimpleIndex();
-                manufacturerToModelIndex.put(manu, index);
+            	partial.noFamilySet.add(prodId);
             }
             String model = product.getModel();
             if (model != null) {
-            	index.index(prodId, product.getModel());
+            	List<String> tokens = toList(tokenizer.tokenize(model));
+            	partial.modelIndex.index(prodId, tokens);
+            	partial.modelPhrases.add(prodId, tokens);
+            }
+        }
+        return partial;
+    }
+
+    /**
+     * Family and model indexes over a run of a manufacturer's products
+     */
+    private class PartialIndex {
+        private SimpleTextIndex familyIndex = createSimpleIndex();
+        private SimpleTextIndex modelIndex = createSimpleIndex();
+        private Set<Integer>    noFamilySet = new HashSet<Integer>();
+        private PhraseTable     familyPhrases = new PhraseTable();
+        private PhraseTable     modelPhrases = new PhraseTable();
+
+        /**
+         * Appends the indexes over the run of products following this one
+         */
+        private void append(PartialIndex next) {
+            familyIndex.append(next.familyIndex);
+            modelIndex.append(next.modelIndex);
+            noFamilySet.addAll(next.noFamilySet);
+            familyPhrases.append(next.familyPhrases);
+            modelPhrases.append(next.modelPhrases);
+        }
+
+        private long getEstimatedSize() {
+            return familyIndex.getEstimatedSize() + modelIndex.getEstimatedSize() + 36L * noFamilySet.size()
+                    + familyPhrases.getEstimatedSize() + modelPhrases.getEstimatedSize();
+        }
+
+        private void writeTo(DataOutput out) throws IOException {
+            familyIndex.writeTo(out);
+            modelIndex.writeTo(out);
+            out.writeInt(noFamilySet.size());
+            for (Integer prodId: noFamilySet) {
+                out.writeInt(prodId);
             }
+            familyPhrases.writeTo(out);
+            modelPhrases.writeTo(out);
         }
 
-        for (String manu: manufacturerToFamilyIndex.keySet()) {
-            TextIndex familyIndex = manufacturerToFamilyIndex.get(manu);
-            TextIndex modelIndex = manufacturerToModelIndex.get(manu);
-            Set<Integer> noFamilySet = manufacturerToNoFamily.get(manu);
-            ProductsIndex productIndex = new ProductsIndex(modelIndex, familyIndex, noFamilySet);
-            manufacturerToIndex.put(manu, productIndex);
+        private void readFrom(DataInput in) throws IOException {
+            familyIndex = SimpleTextIndex.readFrom(in, tokenizer);
+            modelIndex = SimpleTextIndex.readFrom(in, tokenizer);
+            int cnt = in.readInt();
+            for (int i = 0; i < cnt; i++) {
+                noFamilySet.add(in.readInt());
+            }
+            familyPhrases = PhraseTable.readFrom(in);
+            modelPhrases = PhraseTable.readFrom(in);
         }
     }
-    
-    private SimpleTextIndex createSimpleIndex() {
-    	return new SimpleTextIndex(tokenizer);
+
+    private File writePartialIndex(PartialIndex partial, IndexPager pager) {
+        try {
+            File file = pager.createPageFile();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                partial.writeTo(out);
+            } finally {
+                out.close();
+            }
+            return file;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write index page", e);
+        }
+    }
+
+    private PartialIndex readPartialIndex(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                PartialIndex partial = new PartialIndex();
+                partial.readFrom(in);
+                return partial;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read index page " + file, e);
+        }
+    }
+
+    /**
+     * Builds the indexes over a run of a manufacturer's products.  Runs larger than
+     * {@link #SPLIT_THRESHOLD} are split in two, and the halves merged in order, so
+     * the result is the same as indexing the products one after the other.
+     */
+    private class IndexBuildTask extends RecursiveTask<PartialIndex> {
+        private static final long serialVersionUID = 1L;
+        private List<Integer>   prodIds;
+        private int             from;
+        private int             to;
+
+        private IndexBuildTask(List<Integer> prodIds, int from, int to) {
+            this.prodIds = prodIds;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected PartialIndex compute() {
+            if (to - from <= SPLIT_THRESHOLD) {
+                return buildPartialIndex(prodIds, from, to);
+            }
+            int mid = (from + to) >>> 1;
+            IndexBuildTask second = new IndexBuildTask(prodIds, mid, to);
+            second.fork();
+            PartialIndex partial = new IndexBuildTask(prodIds, from, mid).compute();
+            partial.append(second.join());
+            return partial;
+        }
+    }
+
+    /**
+     * The products of one manufacturer, and their indexes once built.  With an
+     * index pager, the indexes are written to a page file when built, and may be
+     * evicted and read back from it any number of times.
+     */
+    private class ManufacturerIndex implements IndexPager.Page {
+        private List<Integer>           prodIds;
+        private volatile ProductsIndex  index;
+        private File                    pageFile;
+
+        private ManufacturerIndex(List<Integer> prodIds) {
+            this.prodIds = prodIds;
+        }
+
+        /**
+         * Gets the indexes, building or loading them if need be.  Concurrent callers
+         * wait for a single build or load.
+         */
+        private ProductsIndex get() {
+            IndexPager pager = indexPager;
+            ProductsIndex result = index;
+            if (result != null) {
+                if (pager != null) {
+                    pager.touch(this);
+                }
+                return result;
+            }
+            long size = 0;
+            synchronized (this) {
+                result = index;
+                if (result == null) {
+                    PartialIndex partial;
+                    if (pageFile != null) {
+                        long start = System.nanoTime();
+                        partial = readPartialIndex(pageFile);
+                        pager.recordLoad(System.nanoTime() - start);
+                    } else {
+                        partial = new IndexBuildTask(prodIds, 0, prodIds.size()).invoke();
+                        if (pager != null) {
+                            pageFile = writePartialIndex(partial, pager);
+                            pager.recordBuild();
+                        }
+                    }
+                    result = createProductsIndex(partial);
+                    index = result;
+                    size = partial.getEstimatedSize();
+                }
+            }
+            if (pager != null && size > 0) {
+                pager.admit(this, size);
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized void evict() {
+            index = null;
+        }
+    }
+
+    /**
+     * Runs the per manufacturer build tasks
+     */
+    private static class IndexBuildBatch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private Collection<IndexBuildTask>  tasks;
+
+        private IndexBuildBatch(Collection<IndexBuildTask> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(tasks);
+        }
     }
     
     /**
-     * Gets the manufacturer-specific index associated with a given listing.
+     * Finds the ordinals of the products of a manufacturer matching a listing title.
+     * Titles sharing no token with the manufacturer's models are rejected up front.
+     * Next the title is looked up in the manufacturer's phrase tables, which settle
+     * most titles.  Only those left undecided go to the full index, consulting the
+     * match cache first if there is one.
+     * @param manu the manufacturer, as returned by {@link #manufacturerForListing(Listing)}
+     * @param title the listing title
+     * @return the matching product ordinals, in increasing order.  Must not be modified.
+     */
+    private int[] matchOrdinals(String manu, String title) {
+        ProductsIndex index = manufacturerToIndex.get(manu).get();
+        List<String> tokens = toList(tokenizer.tokenize(title));
+        if (!index.mightMatch(tokens)) {
+            return NO_MATCHES;
+        }
+        Set<Integer> exactMatches = index.exactMatches(tokens);
+        if (exactMatches != null) {
+            exactMatchCount.incrementAndGet();
+            return exactMatches.isEmpty() ? NO_MATCHES : new int[] { exactMatches.iterator().next() };
+        }
+        indexMatchCount.incrementAndGet();
+        long generation = 0;
+        if (matchCache != null) {
+            generation = matchCache.getGeneration();
+            int[] cached = matchCache.get(manu, tokens);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        Set<Integer> productIds = index.bestMatches(tokens);
+        int[] matches = new int[productIds.size()];
+        int cnt = 0;
+        for (Integer productId: productIds) {
+            matches[cnt++] = productId;
+        }
+        Arrays.sort(matches);
+        if (matchCache != null) {
+            matchCache.put(generation, manu, tokens, matches);
+        }
+        return matches;
+    }
+
+    private static List<String> toList(Iterable<String> tokens) {
+        if (tokens instanceof List) {
+            return (List<String>) tokens;
+        }
+        List<String> list = new ArrayList<String>();
+        for (String token: tokens) {
+            list.add(token);
+        }
+        return list;
+    }
+
+    /**
+     * Gets the manufacturer whose index is associated with a given listing.
      * The manufacturer is determined as follows:
      * <ol>
      * <li>listing.getManufacturer(), or</li>
@@ -130,28 +613,24 @@ public class ProductMatcher {
      * <li>first word in listing.getTitle() ex. "Nikon" from "Nikon SLR..."</li>
      * </ol>
      * @param listing
-     * @return
+     * @return the indexed manufacturer, or null if none matches the listing, or
+     * the listing has no title to match
      */
-    private TextIndex indexForListing(Listing listing) {
+    private String manufacturerForListing(Listing listing) {
         String manu = listing.getManufacturer();
-        if (manu == null) {
+        String title = listing.getTitle();
+        if (manu == null || title == null) {
         	return null;
         }
         manu = manu.toLowerCase();
-        TextIndex index = manufacturerToIndex.get(manu);
-        if (index != null) {
-        	return index;
+        if (manufacturerToIndex.containsKey(manu)) {
+        	return manu;
         }
         manu = manu.split(" ")[0];
-        index = manufacturerToIndex.get(manu);
-        if (index != null) {
-        	return index;
-        }
-        String title = listing.getTitle();
-        if (title == null) {
-        	return null;
+        if (manufacturerToIndex.containsKey(manu)) {
+        	return manu;
         }
     	manu = title.toLowerCase().split(" ")[0];
-        return manufacturerToIndex.get(manu);    
+        return manufacturerToIndex.containsKey(manu) ? manu : null;
     }
 }
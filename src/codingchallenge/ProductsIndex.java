@@ -13,6 +13,9 @@ public class ProductsIndex implements TextIndex {
     private TextIndex   	modelIndex;
     private TextIndex   	familyIndex;
     private Set<Integer>	noFamilyProducts;
+    private TokenBloomFilter	modelTokenFilter;
+    private PhraseTable		modelPhrases;
+    private PhraseTable		familyPhrases;
 
     /**
      * Products index
@@ -30,6 +33,64 @@ public class ProductsIndex implements TextIndex {
         }
     }
 
+    /**
+     * Products index with a prefilter over the model tokens.  Queries sharing no
+     * token with any model cannot match, and are rejected by the filter without
+     * searching the indexes.
+     * @param modelIndex index over product models
+     * @param familyIndex index over products families
+     * @param noFamilyProducts those products that have no specified family
+     * @param modelTokenFilter filter over the tokens of all indexed models
+     */
+    public ProductsIndex(TextIndex modelIndex, TextIndex familyIndex, Set<Integer> noFamilyProducts,
+            TokenBloomFilter modelTokenFilter) {
+        this(modelIndex, familyIndex, noFamilyProducts);
+        this.modelTokenFilter = modelTokenFilter;
+    }
+
+    /**
+     * Sets the phrase tables used by {@link #exactMatches(List)}
+     * @param modelPhrases phrase table over the same models as the model index
+     * @param familyPhrases phrase table over the same families as the family index
+     */
+    public void setPhraseTables(PhraseTable modelPhrases, PhraseTable familyPhrases) {
+        this.modelPhrases = modelPhrases;
+        this.familyPhrases = familyPhrases;
+    }
+
+    /**
+     * Matches the query using only the phrase tables.  Gives the same result as
+     * {@link #bestMatches(Iterable)} when the query's best model match is a single
+     * product or there is none, and gives up otherwise.
+     * @param queryTokens the query tokens
+     * @return the matching products, or null if the full indexes must be searched
+     */
+    public Set<Integer> exactMatches(List<String> queryTokens) {
+        if (modelPhrases == null) {
+            return null;
+        }
+        Set<Integer> modelMatches = modelPhrases.bestMatches(queryTokens);
+        if (modelMatches.size() > 1) {
+            return null;
+        }
+        if (modelMatches.isEmpty()) {
+            return modelMatches;
+        }
+        Integer match = modelMatches.iterator().next();
+        if (noFamilyProducts.contains(match) || familyPhrases.bestMatches(queryTokens).contains(match)) {
+            return modelMatches;
+        }
+        return Collections.emptySet();
+    }
+
+    /**
+     * @param queryTokens the query tokens
+     * @return false if the query certainly matches no product
+     */
+    public boolean mightMatch(Iterable<String> queryTokens) {
+        return modelTokenFilter == null || modelTokenFilter.mightContainAny(queryTokens);
+    }
+
     /**
      * The set of products whose model and family match the given query are returned.
      * Those products who have no family, but have a matching model, are also returned.
@@ -43,7 +104,29 @@ public class ProductsIndex implements TextIndex {
         if (familyIndex != null) {
         	familyMatches = familyIndex.bestMatches(query);
         }
-        
+        return intersect(modelMatches, familyMatches);
+    }
+
+    /**
+     * Same as {@link #bestMatches(String)}, for a query already tokenized by the
+     * tokenizer of the model and family indexes
+     */
+    public Set<Integer> bestMatches(Iterable<String> queryTokens) {
+        if (!mightMatch(queryTokens)) {
+            return Collections.emptySet();
+        }
+        Set<Integer> modelMatches = Collections.emptySet();
+        if (modelIndex != null) {
+        	modelMatches = modelIndex.bestMatches(queryTokens);
+        }
+        Set<Integer> familyMatches = Collections.emptySet();
+        if (familyIndex != null) {
+        	familyMatches = familyIndex.bestMatches(queryTokens);
+        }
+        return intersect(modelMatches, familyMatches);
+    }
+
+    private Set<Integer> intersect(Set<Integer> modelMatches, Set<Integer> familyMatches) {
         Set<Integer> intersection = new HashSet<Integer>();
         for (Integer match: modelMatches) {
             if (familyMatches.contains(match) || noFamilyProducts.contains(match)) {
@@ -0,0 +1,377 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Persisted result of earlier listings runs, so a run only needs to match the
+ * listings added since.
+ * <p>
+ * The store records each listings file matched and how far, and for every matched
+ * listing a reference into its file (file, offset and length) with the ordinals of
+ * the products it matched, in the order the listings were matched.  A run matches
+ * only new files and what was appended to known ones, and the output is built by
+ * replaying the stored references followed by the new ones, reading each listing
+ * back from its file.  The output is therefore that of a single run over all the
+ * listings in the order they were added, or with a delta only the entries of the
+ * products that gained listings.
+ * <p>
+ * A listings file counts as appended to if it has not shrunk and the bytes before
+ * the end already matched are unchanged, so files should only ever be appended
+ * whole lines.  If a known file changed otherwise, or the
+ * products file changed, the store is rebuilt from scratch.
+ * 
+ * @author Shannon
+ *
+ */
+class ResultStore implements Closeable {
+    private static final String     STATE_FILE = "store.properties";
+    private static final String     MATCHES_FILE = "matches.dat";
+
+    /**
+     * Bytes before the end of a file's matched part checked to be unchanged
+     */
+    private static final int        TAIL_LENGTH = 64 << 10;
+
+    private File                    directory;
+    private String                  fingerprint;
+    private Properties              state = new Properties();
+    private List<File>              files = new ArrayList<File>();
+    private LongList                matchedLengths = new LongList();
+    private LongList                newLengths = new LongList();
+    private long                    storedLength;
+    private long                    storedListingCount;
+    private DataOutputStream        newMatchesOut;
+    private long                    newMatchesLength;
+    private long                    newListingCount;
+    private Set<Integer>            changedProducts = new HashSet<Integer>();
+    private Map<Integer,FileChannel> channels = new HashMap<Integer,FileChannel>();
+
+    /**
+     * Opens the store, rebuilding it if the products have changed since it was written
+     * @param directory where the store is kept
+     * @param productsFile the products file
+     * @throws IOException
+     */
+    ResultStore(File directory, File productsFile) throws IOException {
+        this.directory = directory;
+        this.fingerprint = productsFile.length() + " " + Long.toHexString(checksum(productsFile, 0, productsFile.length()));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File stateFile = new File(directory, STATE_FILE);
+        if (stateFile.exists()) {
+            readState(stateFile);
+            if (!fingerprint.equals(state.getProperty("products"))) {
+                rebuild("the products file changed");
+            }
+        }
+    }
+
+    /**
+     * Adds listings files to match, checking that the known ones were only appended to
+     * @param listingsFiles the listings files given to the run
+     * @throws IOException
+     */
+    void addFiles(List<File> listingsFiles) throws IOException {
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            long matched = matchedLengths.get(i);
+            if (matched == 0) {
+                continue;
+            }
+            if (!file.isFile()) {
+                throw new FileNotFoundException("Listings file " + file + " of result store " + directory + " is missing");
+            }
+            long tailStart = Math.max(0, matched - TAIL_LENGTH);
+            if (file.length() < matched
+                    || checksum(file, tailStart, matched) != Long.parseLong(state.getProperty("file." + i + ".tail"), 16)) {
+                rebuild(file + " changed other than by appending");
+                break;
+            }
+        }
+        for (File file: listingsFiles) {
+            if (indexOf(file) < 0) {
+                files.add(file.getAbsoluteFile());
+                matchedLengths.add(0);
+            }
+        }
+        for (int i = 0; i < files.size(); i++) {
+            newLengths.add(files.get(i).length());
+        }
+        // New listings are appended past the stored ones, dropping whatever an
+        // interrupted run appended; they only count once committed
+        RandomAccessFile matchesFile = new RandomAccessFile(new File(directory, MATCHES_FILE), "rw");
+        try {
+            matchesFile.setLength(storedLength);
+        } finally {
+            matchesFile.close();
+        }
+        newMatchesOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(directory, MATCHES_FILE), true), 1 << 16));
+    }
+
+    /**
+     * @return the number of known files
+     */
+    int getFileCount() {
+        return files.size();
+    }
+
+    File getFile(int index) {
+        return files.get(index);
+    }
+
+    /**
+     * @return the offset in a file from which its listings are new
+     */
+    long getMatchedLength(int index) {
+        return matchedLengths.get(index);
+    }
+
+    /**
+     * @return the file's length when the run started, up to which it is matched
+     */
+    long getNewLength(int index) {
+        return newLengths.get(index);
+    }
+
+    /**
+     * @return the index of a known file, or -1
+     */
+    int indexOf(File file) {
+        return files.indexOf(file.getAbsoluteFile());
+    }
+
+    /**
+     * Adds a newly matched listing
+     * @param fileIndex the listing's file
+     * @param offset the listing's offset in the file
+     * @param length the listing's length in bytes
+     * @param matches the matches of the listing's batch
+     * @param index the listing's index in its batch
+     * @throws IOException
+     */
+    void addListing(int fileIndex, long offset, int length, MatchResult matches, int index) throws IOException {
+        newMatchesOut.writeInt(fileIndex);
+        newMatchesOut.writeLong(offset);
+        newMatchesOut.writeInt(length);
+        newMatchesOut.writeInt(matches.getMatchEnd(index) - matches.getMatchStart(index));
+        for (int pos = matches.getMatchStart(index); pos < matches.getMatchEnd(index); pos++) {
+            newMatchesOut.writeInt(matches.getProductOrdinal(pos));
+            changedProducts.add(matches.getProductOrdinal(pos));
+        }
+        newMatchesLength += 20 + 4 * (matches.getMatchEnd(index) - matches.getMatchStart(index));
+        newListingCount++;
+    }
+
+    /**
+     * @return the number of products that gained listings in this run
+     */
+    int getChangedProductCount() {
+        return changedProducts.size();
+    }
+
+    /**
+     * @return the number of matched listings added in this run
+     */
+    long getNewListingCount() {
+        return newListingCount;
+    }
+
+    /**
+     * Replays the stored listings, then the new ones, into an aggregator, reading each
+     * listing back from its file
+     * @param matcher the matcher whose product ordinals were stored
+     * @param aggregator the aggregator
+     * @param changedOnly whether to replay only the matches of products that gained listings
+     * @throws IOException
+     */
+    void replay(ProductMatcher matcher, MatchAggregator aggregator, boolean changedOnly) throws IOException {
+        newMatchesOut.flush();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(directory, MATCHES_FILE)), 1 << 16));
+        try {
+            replay(in, storedLength + newMatchesLength, matcher, aggregator, changedOnly);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void replay(DataInputStream in, long length, ProductMatcher matcher, MatchAggregator aggregator,
+            boolean changedOnly) throws IOException {
+        for (long pos = 0; pos < length; ) {
+            int fileIndex = in.readInt();
+            long offset = in.readLong();
+            int lineLength = in.readInt();
+            int matchCount = in.readInt();
+            int listingId = -1;
+            for (int i = 0; i < matchCount; i++) {
+                int ordinal = in.readInt();
+                if (changedOnly && !changedProducts.contains(ordinal)) {
+                    continue;
+                }
+                if (listingId < 0) {
+                    listingId = aggregator.addListing(readLine(fileIndex, offset, lineLength), -1, 0);
+                }
+                aggregator.addMatch(listingId, matcher.getProduct(ordinal), 0);
+            }
+            pos += 20 + 4 * matchCount;
+        }
+    }
+
+    /**
+     * Reads a listing's line back from its file, trimmed as when it was matched
+     */
+    private byte[] readLine(int fileIndex, long offset, int length) throws IOException {
+        FileChannel channel = channels.get(fileIndex);
+        if (channel == null) {
+            channel = FileChannel.open(files.get(fileIndex).toPath(), StandardOpenOption.READ);
+            channels.put(fileIndex, channel);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, offset + buf.position()) < 0) {
+                throw new EOFException("Listing at " + offset + " is past the end of " + files.get(fileIndex));
+            }
+        }
+        byte[] line = buf.array();
+        int start = 0;
+        int end = line.length;
+        while (start < end && (line[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (line[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        return start == 0 && end == line.length ? line : Arrays.copyOfRange(line, start, end);
+    }
+
+    /**
+     * Commits the new listings to the store, and records how far each file has been matched
+     * @throws IOException
+     */
+    void commit() throws IOException {
+        newMatchesOut.flush();
+        FileChannel matchesChannel = FileChannel.open(new File(directory, MATCHES_FILE).toPath(), StandardOpenOption.WRITE);
+        try {
+            matchesChannel.force(false);
+        } finally {
+            matchesChannel.close();
+        }
+        Properties newState = new Properties();
+        newState.setProperty("products", fingerprint);
+        newState.setProperty("matchesLength", Long.toString(storedLength + newMatchesLength));
+        newState.setProperty("listingCount", Long.toString(storedListingCount + newListingCount));
+        newState.setProperty("fileCount", Integer.toString(files.size()));
+        for (int i = 0; i < files.size(); i++) {
+            long length = newLengths.get(i);
+            newState.setProperty("file." + i + ".path", files.get(i).getPath());
+            newState.setProperty("file." + i + ".length", Long.toString(length));
+            newState.setProperty("file." + i + ".tail", Long.toHexString(
+                    checksum(files.get(i), Math.max(0, length - TAIL_LENGTH), length)));
+        }
+        File temporary = new File(directory, STATE_FILE + ".tmp");
+        FileOutputStream stateOut = new FileOutputStream(temporary);
+        try {
+            newState.store(stateOut, "Listings result store");
+            stateOut.getFD().sync();
+        } finally {
+            stateOut.close();
+        }
+        Files.move(temporary.toPath(), new File(directory, STATE_FILE).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (newMatchesOut != null) {
+            newMatchesOut.close();
+        }
+        for (FileChannel channel: channels.values()) {
+            channel.close();
+        }
+        channels.clear();
+    }
+
+    private void readState(File stateFile) throws IOException {
+        InputStream in = new FileInputStream(stateFile);
+        try {
+            state.load(in);
+        } finally {
+            in.close();
+        }
+        try {
+            storedLength = Long.parseLong(state.getProperty("matchesLength"));
+            storedListingCount = Long.parseLong(state.getProperty("listingCount"));
+            int fileCount = Integer.parseInt(state.getProperty("fileCount"));
+            for (int i = 0; i < fileCount; i++) {
+                files.add(new File(state.getProperty("file." + i + ".path")));
+                matchedLengths.add(Long.parseLong(state.getProperty("file." + i + ".length")));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Bad result store state in " + stateFile);
+        }
+    }
+
+    /**
+     * Forgets everything stored, so all listings are matched afresh
+     */
+    private void rebuild(String reason) {
+        System.err.println("Rebuilding result store " + directory + ": " + reason);
+        storedLength = 0;
+        storedListingCount = 0;
+        LongList unmatched = new LongList();
+        for (int i = 0; i < files.size(); i++) {
+            unmatched.add(0);
+        }
+        matchedLengths = unmatched;
+    }
+
+    private static long checksum(File file, long start, long end) throws IOException {
+        CRC32 crc = new CRC32();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(64 << 10);
+            for (long pos = start; pos < end; ) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), end - pos));
+                int count = channel.read(buf, pos);
+                if (count < 0) {
+                    break;
+                }
+                crc.update(buf.array(), 0, count);
+                pos += count;
+            }
+        } finally {
+            channel.close();
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,177 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+
+/**
+ * NDJSON output appended to a series of files in a directory, named
+ * <code>prefix-00001.ndjson</code> and on, rolling over to the next file once one
+ * reaches a given size.
+ * <p>
+ * Output is committed in units, each the matches of one input file: on commit the
+ * output is forced to disk, and the committed length recorded in a position file
+ * along with the name of the unit.  Output after the last commit is truncated away
+ * when the output is reopened, or on {@link #rollback()}, so no unit is ever left
+ * half written.  Files only roll over on commit, so a unit is never split across
+ * files.
+ * 
+ * @author Shannon
+ *
+ */
+class RollingOutput implements Closeable {
+    private static final Charset    UTF_8 = Charset.forName("UTF-8");
+
+    private File                    directory;
+    private String                  prefix;
+    private long                    rollBytes;
+    private int                     index;
+    private long                    committedLength;
+    private String                  committedName;
+    private FileChannel             channel;
+    private JsonOutputSink          sink;
+
+    /**
+     * Opens the output, continuing after the last commit of any earlier output in the directory
+     * @param directory where the output files are written
+     * @param prefix the output file name prefix
+     * @param rollBytes the size at which an output file is rolled over
+     * @throws IOException
+     */
+    RollingOutput(File directory, String prefix, long rollBytes) throws IOException {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.rollBytes = rollBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        readPosition();
+        open();
+    }
+
+    /**
+     * @return where to write output; only committed output survives a restart
+     */
+    JsonOutputSink getSink() {
+        return sink;
+    }
+
+    /**
+     * @return the name of the last unit committed, or null if none
+     */
+    String getCommittedName() {
+        return committedName;
+    }
+
+    /**
+     * @return the output file being written
+     */
+    File getFile() {
+        return new File(directory, String.format("%s-%05d.ndjson", prefix, index));
+    }
+
+    /**
+     * Commits the output written since the last commit, rolling over to a new file
+     * if the current one is full
+     * @param name names the unit of output committed
+     * @throws IOException
+     */
+    void commit(String name) throws IOException {
+        sink.flush();
+        channel.force(false);
+        committedLength = channel.size();
+        committedName = name;
+        if (committedLength >= rollBytes) {
+            sink.close();
+            index++;
+            committedLength = 0;
+            open();
+        }
+        writePosition();
+    }
+
+    /**
+     * Discards the output written since the last commit
+     * @throws IOException
+     */
+    void rollback() throws IOException {
+        sink.flush();
+        channel.truncate(committedLength);
+    }
+
+    @Override
+    public void close() throws IOException {
+        rollback();
+        sink.close();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(getFile().toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(committedLength);
+        channel.position(committedLength);
+        sink = new JsonOutputSink(channel);
+    }
+
+    private File getPositionFile() {
+        return new File(directory, prefix + ".position");
+    }
+
+    private void readPosition() throws IOException {
+        File positionFile = getPositionFile();
+        if (!positionFile.exists()) {
+            // Nothing committed: start after any output files already there
+            index = 1;
+            while (getFile().exists()) {
+                index++;
+            }
+            return;
+        }
+        String position = new String(Files.readAllBytes(positionFile.toPath()), UTF_8).trim();
+        String[] fields = position.split(" ", 3);
+        try {
+            index = Integer.parseInt(fields[0]);
+            committedLength = Long.parseLong(fields[1]);
+        } catch (RuntimeException e) {
+            throw new IOException("Bad output position in " + positionFile + ": " + position);
+        }
+        committedName = fields.length > 2 ? fields[2] : null;
+    }
+
+    private void writePosition() throws IOException {
+        File positionFile = getPositionFile();
+        File temporary = new File(directory, positionFile.getName() + ".tmp");
+        String position = index + " " + committedLength + (committedName != null ? " " + committedName : "") + "\n";
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            out.write(position.getBytes(UTF_8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(temporary.toPath(), positionFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+}
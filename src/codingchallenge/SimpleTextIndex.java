@@ -22,6 +22,7 @@ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
 SOFTWARE.
 */
 
+import java.io.*;
 import java.util.*;
 
 /**
@@ -70,12 +71,21 @@ public class SimpleTextIndex implements TextIndex {
      * @param txt the document text
      */
     public void index(Integer docId, String txt) {
+        index(docId, tokenizer.tokenize(txt));
+    }
+
+    /**
+     * Adds an already tokenized document to index
+     * @param docId the id of the added document
+     * @param tokens the document tokens, as produced by the index's tokenizer
+     */
+    public void index(Integer docId, Iterable<String> tokens) {
         int docIndex = docIds.size();
         docIds.add(docId);
         StringBuilder buf = new StringBuilder();
         buf.append(' ');
         int cnt = 0;
-        for (String tok: tokenizer.tokenize(txt)) {
+        for (String tok: tokens) {
             List<Integer> docIndices = tokenToDocIndices.get(tok);
             if (docIndices == null) {
                 docIndices = new ArrayList<Integer>();
@@ -90,13 +100,116 @@ public class SimpleTextIndex implements TextIndex {
         docSizes.add(cnt);
     }
 
+    /**
+     * Writes the index in a form read back by {@link #readFrom(DataInput, Tokenizer)}
+     * @param out where to write the index
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(docIds.size());
+        for (int i = 0; i < docIds.size(); i++) {
+            out.writeInt(docIds.get(i));
+            out.writeUTF(normalizedDocs.get(i));
+            out.writeInt(docSizes.get(i));
+        }
+        out.writeInt(tokenToDocIndices.size());
+        for (Map.Entry<String,List<Integer>> entry: tokenToDocIndices.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (Integer docIndex: entry.getValue()) {
+                out.writeInt(docIndex);
+            }
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #writeTo(DataOutput)}
+     * @param in where to read the index from
+     * @param tokenizer used for tokenizing queries, the same as that of the written index
+     * @return the index
+     * @throws IOException
+     */
+    public static SimpleTextIndex readFrom(DataInput in, Tokenizer tokenizer) throws IOException {
+        SimpleTextIndex index = new SimpleTextIndex(tokenizer);
+        int docCount = in.readInt();
+        for (int i = 0; i < docCount; i++) {
+            index.docIds.add(in.readInt());
+            index.normalizedDocs.add(in.readUTF());
+            index.docSizes.add(in.readInt());
+        }
+        int tokenCount = in.readInt();
+        for (int i = 0; i < tokenCount; i++) {
+            String token = in.readUTF();
+            int cnt = in.readInt();
+            List<Integer> docIndices = new ArrayList<Integer>(cnt);
+            for (int j = 0; j < cnt; j++) {
+                docIndices.add(in.readInt());
+            }
+            index.tokenToDocIndices.put(token, docIndices);
+        }
+        return index;
+    }
+
+    /**
+     * @return a rough estimate of the heap used by the index, in bytes
+     */
+    public long getEstimatedSize() {
+        long size = 0;
+        for (String doc: normalizedDocs) {
+            // Boxed id and size, document string and list slots
+            size += 32 + 40 + 2 * doc.length() + 12;
+        }
+        for (Map.Entry<String,List<Integer>> entry: tokenToDocIndices.entrySet()) {
+            // Token string, map entry and postings list with boxed offsets
+            size += 40 + 2 * entry.getKey().length() + 32 + 40 + 20 * entry.getValue().size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the distinct tokens of all indexed documents
+     */
+    public Set<String> getVocabulary() {
+        return Collections.unmodifiableSet(tokenToDocIndices.keySet());
+    }
+
+    /**
+     * Appends the documents of another index to this one.  The appended documents
+     * keep their relative order and follow those already indexed, so building two
+     * halves of a document list and appending the second to the first gives the
+     * same index as indexing the whole list.
+     * @param other the index whose documents are appended, left unchanged
+     */
+    public void append(SimpleTextIndex other) {
+        int offset = docIds.size();
+        docIds.addAll(other.docIds);
+        normalizedDocs.addAll(other.normalizedDocs);
+        docSizes.addAll(other.docSizes);
+        for (Map.Entry<String,List<Integer>> entry: other.tokenToDocIndices.entrySet()) {
+            List<Integer> docIndices = tokenToDocIndices.get(entry.getKey());
+            if (docIndices == null) {
+                docIndices = new ArrayList<Integer>(entry.getValue().size());
+                tokenToDocIndices.put(entry.getKey(), docIndices);
+            }
+            for (Integer docIndex: entry.getValue()) {
+                docIndices.add(docIndex + offset);
+            }
+        }
+    }
+
     /**
      * Walks through the query tokens, intersecting the sets of documents having
      * those tokens.  At the end, the documents whose tokens are totally covered
      * by the query are considered to be the best matches
      */
     public Set<Integer> bestMatches(String query) {
-        Iterable<String> tokens = tokenizer.tokenize(query);
+        return bestMatches(tokenizer.tokenize(query));
+    }
+
+    /**
+     * Same as {@link #bestMatches(String)}, for a query that has already been tokenized
+     */
+    public Set<Integer> bestMatches(Iterable<String> tokens) {
         StringBuilder buf = new StringBuilder();
         buf.append(' ');
         Map<Integer,Integer> docToFreq = new HashMap<Integer,Integer>();
@@ -23,7 +23,11 @@ SOFTWARE.
 */
 
 import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 import org.json.*;
 
 /**
@@ -36,74 +40,610 @@ import org.json.*;
  * <li>Outputs the product to listings map to standard output</li>
  * </ol>
  * <p>
- * Conversion to/from JSON is done via open source from org.json 
+ * With --watch-products, the products file is watched while listings are processed,
+ * and the matcher rebuilt whenever it changes.  Products keep one entry across
+ * versions, matched by name, and each of its listings is tagged with the version of
+ * the catalog that matched it.
+ * <p>
+ * Listings are parsed and matched in batches by --threads worker threads, fed by a
+ * reader thread.  Products are output in the order of their first matching listing,
+ * and each product's listings in input order, whatever the number of threads.
+ * With --mmap, the listings file is memory mapped and split into line aligned
+ * ranges of about a megabyte, each read by the thread matching it.  Several listings files,
+ * directories or globs may be given: each file is then read by a reader of its own,
+ * and the output is as if the files had been concatenated in order.
+ * <p>
+ * With --low-memory, only the file offset of each matched listing is kept, and the
+ * listings are read back from the listings file as they are output.  With
+ * --spill-memory, matches beyond the given budget are sorted and spilled to run
+ * files, which are merged on output, so memory stays bounded whatever the input size.
+ * With --grouped-by-manufacturer, the listings are declared grouped by manufacturer,
+ * and each manufacturer's products are output as soon as its group ends.
+ * With --checkpoint-dir, the matches are journaled and the listings offset reached
+ * checkpointed as the run goes, and --resume carries on from the last checkpoint
+ * (see {@link MatchCheckpoint}).
+ * With --result-store, matches are kept between runs, and only the listings added
+ * since are matched; --delta then outputs only the products that gained listings
+ * (see {@link ResultStore}).
+ * <p>
+ * Output goes to standard output, or with --output-dir to --partitions files written
+ * concurrently, with a manifest of their record counts, sizes and checksums.
+ * <p>
+ * With --daemon, listings are instead read as a stream, from standard input if the
+ * listings file is "-", and each one's matching product names written as soon as
+ * it is matched (see {@link MatchDaemon}).  With --serve, matches are served over
+ * HTTP (see {@link MatchServer}), and with --serve-binary over a binary TCP protocol
+ * (see {@link MatchProtocolServer}), and with --watch-dir, listings files dropped
+ * into a directory are matched as they arrive (see {@link SpoolWatcher}); only the
+ * products file is then given.
+ * Gzipped products and listings files are read as is, and with --gzip-output the
+ * output is gzipped on --threads threads, as concatenated gzip members.
+ * <p>
+ * Conversion to/from JSON is done via open source from org.json.  Listings are
+ * parsed for matching only: the raw line of each matched listing is kept, and
+ * copied verbatim into the output.
  * 
  * @author Shannon
  */
 public class SortableChallenge {
 	private Reader						productsReader;
 	private Reader						listingsReader;
-	private Writer						outputWriter;
-	private Map<Product,Set<Listing>>	productToListings = new HashMap<Product,Set<Listing>>();
-	private Map<Listing,JSONObject>		listingToJSON = new HashMap<Listing,JSONObject>();
+	private MatchAggregator				aggregator;
+	private EntryWriter					entryWriter;
+	private ExecutorService				compressor;
+	private String						groupManufacturer;
+	private Set<String>					endedManufacturers = new HashSet<String>();
+	private Options			options;
 	private ProductMatcher	matcher;
+	private Path			watchedProductsPath;
+	private CatalogWatcher	catalogWatcher;
+	private MatchCheckpoint	checkpoint;
+	private ResultStore		resultStore;
+	
+	/**
+	 * Number of listing lines read, parsed and matched together
+	 */
+	private static final int	BATCH_SIZE = 1000;
+	
+	/**
+	 * Size of the ranges a memory mapped listings file is split into, small enough
+	 * that the ranges read ahead of the aggregator take little memory
+	 */
+	private static final long	MAPPED_RANGE_SIZE = 1 << 20;
+	
+	private static final Charset	UTF_8 = Charset.forName("UTF-8");
 	
     public static void main(String[] args) throws Exception {
-        if (args.length != 2) {
+        Options options = null;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+        }
+        String productsFileName = options.productsFileName;
+        String listingsFileName = options.listingsFileName;
+        if (listingsFileName != null && !listingsFileName.equals("-")) {
+        	List<File> listingsFiles = null;
+        	try {
+        		listingsFiles = ListingFiles.expand(options.listingsFileNames);
+        	} catch (FileNotFoundException e) {
+        		System.err.println(e.getMessage());
+        		System.exit(1);
+        	}
+        	if (listingsFiles.size() == 1) {
+        		listingsFileName = options.listingsFileName = listingsFiles.get(0).getPath();
+        	} else if (options.mapListings || options.daemon || options.checkpointDirectory != null) {
+        		System.err.println("--mmap, --low-memory, --daemon and --checkpoint-dir take a single listings file");
+        		usage();
+        	} else {
+        		options.listingsFiles = listingsFiles;
+        	}
+        }
+        
+        if (options.mapListings && listingsFileName != null && CompressedInput.isGzipped(new File(listingsFileName))) {
+            System.err.println("--mmap and --low-memory need an uncompressed listings file");
             usage();
         }
-        String productsFileName = args[0];
-        String listingsFileName = args[1];
         
-        Reader productsReader = new FileReader(productsFileName);
-        Reader listingsReader = new FileReader(listingsFileName);
+        Reader productsReader = new InputStreamReader(CompressedInput.open(new File(productsFileName)), UTF_8);
+        Reader listingsReader = null;
+        if (listingsFileName == null) {
+        	// Serving or watching: listings come with the requests or files
+        } else if (listingsFileName.equals("-")) {
+        	listingsReader = new InputStreamReader(CompressedInput.open(System.in), UTF_8);
+        } else if (!options.mapListings && options.listingsFiles == null && options.checkpointDirectory == null
+        		&& options.resultStoreDirectory == null) {
+        	listingsReader = new InputStreamReader(CompressedInput.open(new File(listingsFileName)), UTF_8);
+        }
         
-        new SortableChallenge(productsReader, listingsReader).run();
+        new SortableChallenge(productsReader, listingsReader, options).run();
+    }
+    
+    SortableChallenge(Reader productsReader, Reader listingsReader) throws IOException {
+    	this(productsReader, listingsReader, new Options());
     }
     
-    SortableChallenge(Reader productsReader, Reader listingsReader) {
+    SortableChallenge(Reader productsReader, Reader listingsReader, Options options) throws IOException {
     	this.productsReader = productsReader;
     	this.listingsReader = listingsReader;
-    	matcher = new ProductMatcher(new NormalizingAlphaNumericTokenizer());
+    	this.options = options;
+    	if (options.watchProducts) {
+    		watchedProductsPath = Paths.get(options.productsFileName);
+    	}
+    	matcher = createMatcher(1);
+    	FileListingStore fileStore = options.lowMemory ? new FileListingStore(Paths.get(options.listingsFileName)) : null;
+    	if (options.spillMemoryBudget > 0) {
+    		File directory = options.spillDirectory != null ? new File(options.spillDirectory)
+    				: Files.createTempDirectory("sortable-runs").toFile();
+    		directory.deleteOnExit();
+    		aggregator = new SpillingMatchAggregator(options.spillMemoryBudget, directory, fileStore);
+    	} else {
+    		aggregator = new MemoryMatchAggregator(fileStore != null ? fileStore : new ListingArena(), options.threads);
+    	}
+    }
+    
+    private ProductMatcher createMatcher(long catalogVersion) throws IOException {
+    	ProductMatcher newMatcher = new ProductMatcher(new NormalizingAlphaNumericTokenizer(), catalogVersion);
+    	newMatcher.setLazy(options.lazyIndexes);
+    	if (options.matchCacheSize > 0) {
+    		newMatcher.setMatchCache(new MatchCache(options.matchCacheSize));
+    	}
+    	if (options.indexMemoryBudget > 0) {
+    		File directory = options.indexDirectory != null ? new File(options.indexDirectory)
+    				: Files.createTempDirectory("sortable-index").toFile();
+    		directory.deleteOnExit();
+    		newMatcher.setIndexPager(new IndexPager(options.indexMemoryBudget, directory));
+    	}
+    	return newMatcher;
     }
     
-    private void run() throws IOException, JSONException {
+    private void run() throws Exception {
         initProductsMatcher();
+        if (watchedProductsPath != null) {
+        	startCatalogWatcher();
+        }
+        if (options.daemon) {
+        	runDaemon();
+        	return;
+        }
+        if (options.watchDirectory != null) {
+        	runSpoolWatcher();
+        	return;
+        }
+        if (options.servePort > 0 || options.binaryPort > 0) {
+        	runServers();
+        	return;
+        }
         
-        processListings();
-		    	
-    	outputProductMatches();
+        if (options.gzipOutput) {
+        	compressor = Executors.newFixedThreadPool(options.threads, new DaemonThreadFactory("output-compressor-"));
+        }
+        if (options.outputDirectory != null) {
+        	entryWriter = PartitionedEntryWriter.open(new File(options.outputDirectory), options.partitions,
+        			options.partitionByManufacturer, compressor, 2 * options.threads);
+        } else {
+        	WritableByteChannel channel = new FileOutputStream(FileDescriptor.out).getChannel();
+        	if (compressor != null) {
+        		channel = new GzipMemberChannel(channel, compressor, 2 * options.threads);
+        	}
+        	entryWriter = new ProductEntryWriter(new JsonOutputSink(channel));
+        }
+        if (options.checkpointDirectory != null) {
+        	openCheckpoint();
+        }
+        if (options.resultStoreDirectory != null) {
+        	openResultStore();
+        }
+        try {
+        	try {
+        		processListings();
+        	} finally {
+        		if (catalogWatcher != null) {
+        			catalogWatcher.stop();
+        		}
+        	}
+        	reportMatchStatistics();
+        	
+        	outputProductMatches();
+        	if (aggregator instanceof SpillingMatchAggregator) {
+        		// Reported once written, as runs may be merged on output
+        		System.err.println(aggregator);
+        	}
+        } finally {
+        	try {
+        		entryWriter.close();
+        		aggregator.close();
+        	} finally {
+        		if (compressor != null) {
+        			compressor.shutdownNow();
+        		}
+        		if (checkpoint != null) {
+        			checkpoint.close();
+        		}
+        		if (resultStore != null) {
+        			resultStore.close();
+        		}
+        	}
+        }
+        if (checkpoint != null) {
+        	// The output is complete: nothing is left to resume
+        	checkpoint.delete();
+        }
+        if (resultStore != null) {
+        	// The output is complete: the next run can start from here
+        	resultStore.commit();
+        }
+    }
+    
+    /**
+     * Opens the result store, and adds the listings files to it
+     */
+    private void openResultStore() throws IOException {
+    	List<File> files = options.listingsFiles != null ? options.listingsFiles
+    			: Collections.singletonList(new File(options.listingsFileName));
+    	for (File file: files) {
+    		if (CompressedInput.isGzipped(file)) {
+    			throw new BadInputException("--result-store needs uncompressed listings files: " + file);
+    		}
+    	}
+    	resultStore = new ResultStore(new File(options.resultStoreDirectory), new File(options.productsFileName));
+    	resultStore.addFiles(files);
     }
     
-    private void processListings() throws IOException, JSONException {
+    /**
+     * Opens the run's checkpoint, and with --resume replays the listings matched
+     * before it into the aggregator
+     */
+    private void openCheckpoint() throws IOException {
+    	String fingerprint = MatchCheckpoint.fingerprint(new File(options.productsFileName),
+    			new File(options.listingsFileName));
+    	checkpoint = new MatchCheckpoint(new File(options.checkpointDirectory), fingerprint,
+    			options.checkpointIntervalMillis, options.resume);
+    	if (checkpoint.getListingsOffset() > 0) {
+    		checkpoint.replay(matcher, aggregator);
+    		System.err.println("Resuming from checkpoint at listings offset " + checkpoint.getListingsOffset()
+    				+ ", with " + checkpoint.getMatchedCount() + " matched listings");
+    	}
+    }
+    
+    /**
+     * Matches listings as they arrive, writing each one's matches straight away
+     */
+    private void runDaemon() throws Exception {
+		JsonOutputSink out = new JsonOutputSink(new FileOutputStream(FileDescriptor.out).getChannel());
+		try {
+			new MatchDaemon(matcherSource(), listingsReader, out, options.maxFlushLatencyMillis).run();
+		} finally {
+			out.close();
+			listingsReader.close();
+			if (catalogWatcher != null) {
+				catalogWatcher.stop();
+			}
+		}
+    }
+    
+    /**
+     * Matches listings files dropped into the watched directory until the process is stopped
+     */
+    private void runSpoolWatcher() throws IOException {
+    	File spoolDirectory = new File(options.watchDirectory);
+    	if (!spoolDirectory.isDirectory()) {
+    		throw new FileNotFoundException(options.watchDirectory + " is not a directory");
+    	}
+    	File outputDirectory = options.outputDirectory != null ? new File(options.outputDirectory)
+    			: new File(spoolDirectory, "output");
+    	File doneDirectory = options.doneDirectory != null ? new File(options.doneDirectory)
+    			: new File(spoolDirectory, "done");
+    	final RollingOutput output = new RollingOutput(outputDirectory, "matches", options.rollBytes);
+    	final SpoolWatcher watcher = new SpoolWatcher(matcherSource(), spoolDirectory, doneDirectory, output);
+    	Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watcher.stop();
+			}
+		}));
+    	System.err.println("Watching " + spoolDirectory + " for listings files");
     	try {
-    		LineNumberReader llistingsReader = new LineNumberReader(listingsReader);
-    		for (String line = llistingsReader.readLine(); line != null; line = llistingsReader.readLine()) {
-    			line = line.trim();
-    			if (line.length() == 0) {
-    				continue;
+    		watcher.run();
+    	} finally {
+    		output.close();
+    		if (catalogWatcher != null) {
+    			catalogWatcher.stop();
+    		}
+    	}
+    }
+    
+    /**
+     * Serves matches over HTTP and/or the binary protocol until the process is stopped
+     */
+    private void runServers() throws IOException {
+    	final MatchServer server = options.servePort > 0 ? new MatchServer(matcherSource(), options.servePort) : null;
+    	final MatchProtocolServer binaryServer = options.binaryPort > 0 ? new MatchProtocolServer(matcherSource(), options.binaryPort) : null;
+    	Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				if (server != null) {
+					server.stop();
+				}
+				if (binaryServer != null) {
+					binaryServer.stop();
+				}
+				if (catalogWatcher != null) {
+					catalogWatcher.stop();
+				}
+			}
+		}));
+    	if (server != null) {
+    		server.start();
+    		System.err.println("Matching on http://localhost:" + server.getPort() + "/match and /match/batch");
+    	}
+    	if (binaryServer != null) {
+    		binaryServer.start();
+    		System.err.println("Matching on binary protocol port " + binaryServer.getPort());
+    		if (server == null) {
+    			// The accept thread is a daemon: keep the process up
+    			try {
+    				Thread.currentThread().join();
+    			} catch (InterruptedException e) {
+    				Thread.currentThread().interrupt();
     			}
-            	JSONTokener tokener = new JSONTokener(line);
-        		Object token = tokener.nextValue();
-        		if (!(token instanceof JSONObject)) {
-        			throw new BadInputException("Bad listing data: " + token);
-        		}
-        		JSONObject listingJSON = (JSONObject) token;
-        		String title = getStringProp("title", listingJSON);
-        		String manufacturer = getStringProp("manufacturer", listingJSON);
-        		String currency = getStringProp("currency", listingJSON);
-        		String price = getStringProp("price", listingJSON);
-        		Listing listing = new Listing(title, manufacturer, currency, price);
-        		listingToJSON.put(listing, listingJSON);
-        		Set<Product> matchingProducts = matcher.getMatches(listing);
-        		addMatch(listing, matchingProducts);
-        	}
+    		}
+    	}
+    }
+    
+    private MatcherSource matcherSource() {
+    	return new MatcherSource() {
+			@Override
+			public ProductMatcher getMatcher() {
+				return currentMatcher();
+			}
+		};
+    }
+    
+    private void reportMatchStatistics() {
+    	// Each rebuilt matcher carries on its predecessor's statistics, so the current one covers the run
+    	ProductMatcher current = currentMatcher();
+    	long exact = current.getExactMatchCount();
+    	long total = exact + current.getIndexMatchCount();
+    	System.err.println(String.format("%d of %d listings matched by exact phrase (%.1f%%)",
+    			exact, total, total == 0 ? 0.0 : 100.0 * exact / total));
+    	if (checkpoint != null && checkpoint.getResumedMatchedCount() > 0) {
+    		// The matcher only counts what it matched in this run
+    		System.err.println(String.format("Counts cover only the listings after the checkpoint at listings "
+    				+ "offset %d; %d matched listings came before it", checkpoint.getResumedOffset(),
+    				checkpoint.getResumedMatchedCount()));
+    	}
+    	if (current.getMatchCache() != null) {
+    		System.err.println(current.getMatchCache());
+    	}
+    	if (current.getIndexPager() != null) {
+    		System.err.println(current.getIndexPager());
+    	}
+    	if (resultStore != null) {
+    		System.err.println(String.format("%d new matched listings; %d products gained listings",
+    				resultStore.getNewListingCount(), resultStore.getChangedProductCount()));
+    	}
+    }
+    
+    private void startCatalogWatcher() {
+    	CatalogWatcher.MatcherFactory factory = new CatalogWatcher.MatcherFactory() {
+			@Override
+			public ProductMatcher create(long catalogVersion) throws Exception {
+				List<Product> products = readProducts(new InputStreamReader(CompressedInput.open(watchedProductsPath.toFile()), UTF_8));
+				ProductMatcher newMatcher = createMatcher(catalogVersion);
+				// Counts on from the matcher replaced, so the statistics reported cover every version
+				newMatcher.continueStatistics(catalogWatcher.getMatcher());
+				newMatcher.initProducts(products);
+				return newMatcher;
+			}
+		};
+		catalogWatcher = new CatalogWatcher(watchedProductsPath, factory, matcher);
+		catalogWatcher.start();
+    }
+    
+    private ProductMatcher currentMatcher() {
+    	return catalogWatcher != null ? catalogWatcher.getMatcher() : matcher;
+    }
+    
+    private void processListings() throws Exception {
+		ListingPipeline.BatchMatcher<MatchedBatch> batchMatcher = new ListingPipeline.BatchMatcher<MatchedBatch>() {
+			@Override
+			public MatchedBatch match(LineBatch lines) throws JSONException {
+				return matchBatch(lines);
+			}
+		};
+		ListingPipeline.BatchAggregator<MatchedBatch> aggregator = new ListingPipeline.BatchAggregator<MatchedBatch>() {
+			@Override
+			public void aggregate(MatchedBatch batch) throws IOException {
+				aggregateBatch(batch);
+			}
+		};
+		ListingPipeline<MatchedBatch> pipeline = new ListingPipeline<MatchedBatch>(options.threads, 4 * options.threads);
+		if (options.mapListings) {
+			long size = new File(options.listingsFileName).length();
+			int rangeCount = (int) Math.max(options.threads, Math.min(size / MAPPED_RANGE_SIZE, Integer.MAX_VALUE));
+			MappedListingsFile mappedListings = new MappedListingsFile(Paths.get(options.listingsFileName), rangeCount);
+			try {
+				List<ListingPipeline.BatchSource> partitions = new ArrayList<ListingPipeline.BatchSource>();
+				for (int i = 0; i < mappedListings.getRangeCount(); i++) {
+					partitions.add(ListingPipeline.batches(mappedListings.openRange(i), BATCH_SIZE));
+				}
+				pipeline.run(partitions, batchMatcher, aggregator);
+			} finally {
+				mappedListings.close();
+			}
+			return;
+		}
+		
+		if (resultStore != null) {
+			List<ListingPipeline.BatchSource> sources = new ArrayList<ListingPipeline.BatchSource>();
+			for (int i = 0; i < resultStore.getFileCount(); i++) {
+				if (resultStore.getNewLength(i) > resultStore.getMatchedLength(i)) {
+					sources.add(new ListingFiles.Source(resultStore.getFile(i), BATCH_SIZE,
+							resultStore.getMatchedLength(i), resultStore.getNewLength(i)));
+				}
+			}
+			if (!sources.isEmpty()) {
+				pipeline.runFiles(sources, batchMatcher, aggregator);
+			}
+			return;
+		}
+		
+		if (checkpoint != null) {
+			long offset = checkpoint.getListingsOffset();
+			InputStream in = CompressedInput.open(new File(options.listingsFileName));
+			try {
+				for (long remaining = offset; remaining > 0; ) {
+					long skipped = in.skip(remaining);
+					if (skipped <= 0 && in.read() < 0) {
+						throw new IOException("Listings file ends before its checkpoint offset " + offset);
+					}
+					remaining -= Math.max(skipped, 1);
+				}
+				pipeline.run(ListingPipeline.batches(new OffsetLineReader(in, offset), BATCH_SIZE), batchMatcher, aggregator);
+			} finally {
+				in.close();
+			}
+			checkpoint.checkpoint();
+			return;
+		}
+		
+		if (options.listingsFiles != null) {
+			List<ListingPipeline.BatchSource> files = new ArrayList<ListingPipeline.BatchSource>();
+			for (File file: options.listingsFiles) {
+				files.add(new ListingFiles.Source(file, BATCH_SIZE));
+			}
+			pipeline.runFiles(files, batchMatcher, aggregator);
+			return;
+		}
+		
+    	try {
+    		pipeline.run(ListingPipeline.batches(new StreamLineReader(listingsReader), BATCH_SIZE), batchMatcher, aggregator);
     	} finally {
         	listingsReader.close();
     	}    	
     }
     
+    /**
+     * Parses and matches a batch of listing lines.  Called from the pipeline workers.
+     */
+    private MatchedBatch matchBatch(LineBatch lineBatch) throws JSONException {
+    	List<String> lines = lineBatch.getLines();
+    	List<Listing> listings = new ArrayList<Listing>(lines.size());
+    	for (String line: lines) {
+    		try {
+    			listings.add(parseListing(line));
+    		} catch (BadInputException e) {
+    			if (lineBatch.getSourceName() == null) {
+    				throw e;
+    			}
+    			throw new BadInputException(lineBatch.getSourceName() + ": " + e.getMessage());
+    		}
+    	}
+    	MatchedBatch batch = new MatchedBatch();
+    	batch.lineBatch = lineBatch;
+    	batch.matcher = currentMatcher();
+    	batch.matches = batch.matcher.matchAll(listings);
+    	if (aggregator.needsLineBytes() && resultStore == null) {
+    		batch.lineBytes = new byte[lines.size()][];
+    		for (int i = 0; i < lines.size(); i++) {
+    			if (batch.matches.getMatchEnd(i) > batch.matches.getMatchStart(i)) {
+    				batch.lineBytes[i] = lines.get(i).getBytes(UTF_8);
+    			}
+    		}
+    	}
+    	return batch;
+    }
+    
+    /**
+     * Parses a listing line
+     * @param line a JSON object on one line
+     * @return the listing
+     * @throws JSONException
+     */
+    static Listing parseListing(String line) throws JSONException {
+    	JSONTokener tokener = new JSONTokener(line);
+    	Object token = tokener.nextValue();
+    	if (!(token instanceof JSONObject) || tokener.nextClean() != 0) {
+    		throw new BadInputException("Bad listing data: " + line);
+    	}
+    	JSONObject listingJSON = (JSONObject) token;
+    	String title = getStringProp("title", listingJSON);
+    	String manufacturer = getStringProp("manufacturer", listingJSON);
+    	String currency = getStringProp("currency", listingJSON);
+    	String price = getStringProp("price", listingJSON);
+    	return new Listing(title, manufacturer, currency, price);
+    }
+    
+    /**
+     * Adds a batch's matches to the match aggregator, with the raw line of each
+     * matched listing, or its position in the listings file.  Called from the
+     * pipeline aggregator only.
+     */
+    private void aggregateBatch(MatchedBatch batch) throws IOException {
+    	MatchResult matches = batch.matches;
+    	LineBatch lines = batch.lineBatch;
+    	if (resultStore != null) {
+    		// Listings are read back from their files once all are matched
+    		int fileIndex = resultStore.indexOf(new File(lines.getSourceName()));
+    		for (int i = 0; i < matches.getListingCount(); i++) {
+    			if (matches.getMatchEnd(i) > matches.getMatchStart(i)) {
+    				resultStore.addListing(fileIndex, lines.getOffset(i), lines.getLength(i), matches, i);
+    			}
+    		}
+    		return;
+    	}
+    	long catalogVersion = catalogWatcher != null ? batch.matcher.getCatalogVersion() : 0;
+    	for (int i = 0; i < matches.getListingCount(); i++) {
+    		if (matches.getMatchEnd(i) == matches.getMatchStart(i)) {
+    			continue;
+    		}
+    		if (options.groupedByManufacturer) {
+    			startManufacturerGroup(batch.matcher.getProduct(matches.getProductOrdinal(matches.getMatchStart(i))));
+    		}
+    		byte[] lineBytes = batch.lineBytes != null ? batch.lineBytes[i] : null;
+    		int listingId = aggregator.addListing(lineBytes, lines.getOffset(i), lines.getLength(i));
+    		for (int pos = matches.getMatchStart(i); pos < matches.getMatchEnd(i); pos++) {
+    			aggregator.addMatch(listingId, batch.matcher.getProduct(matches.getProductOrdinal(pos)), catalogVersion);
+    		}
+    		if (checkpoint != null) {
+    			checkpoint.addListing(lineBytes, matches, i);
+    		}
+    	}
+    	if (checkpoint != null && lines.size() > 0) {
+    		int last = lines.size() - 1;
+    		checkpoint.advance(lines.getOffset(last) + lines.getLength(last));
+    	}
+    }
+    
+    /**
+     * With listings grouped by manufacturer, outputs and frees the matches of the
+     * previous manufacturer when a listing matches another manufacturer's product
+     * @param product a product matched by the listing
+     */
+    private void startManufacturerGroup(Product product) throws IOException {
+    	String manufacturer = product.getManufacturer().toLowerCase();
+    	if (manufacturer.equals(groupManufacturer)) {
+    		return;
+    	}
+    	if (groupManufacturer != null) {
+    		aggregator.writeTo(entryWriter);
+    		entryWriter.flush();
+    		endedManufacturers.add(groupManufacturer);
+    	}
+    	if (endedManufacturers.contains(manufacturer)) {
+    		throw new BadInputException("Listings not grouped by manufacturer: " + product.getManufacturer()
+    				+ " matched again after its group ended");
+    	}
+    	groupManufacturer = manufacturer;
+    }
+    
     private void initProductsMatcher() throws IOException, JSONException {
+		matcher.initProducts(readProducts(productsReader));
+    }
+    
+    static List<Product> readProducts(Reader productsReader) throws IOException, JSONException {
 		List<Product> products = new ArrayList<Product>();
 		LineNumberReader lproductsReader = new LineNumberReader(productsReader);
     	try {
@@ -128,45 +668,21 @@ public class SortableChallenge {
     	} finally {
     		lproductsReader.close();
     	}
-		matcher.initProducts(products);
-    	
+    	return products;
     }
     
-    private void outputProductMatches() throws IOException, JSONException {
-    	outputWriter = new OutputStreamWriter(System.out);
-    	try {
-        	for (Map.Entry<Product,Set<Listing>> entry: productToListings.entrySet()) {
-        		Product product = entry.getKey();
-            	JSONWriter writer = new JSONWriter(outputWriter);
-        		writer.object();
-        		writer.key("product_name").value(product.getName());
-    			JSONArray listingsArray = new JSONArray();
-        		for (Listing listing: entry.getValue()) {
-        			listingsArray.put(listingToJSON.get(listing));
-        		}
-        		
-    			writer.key("listings").value(listingsArray);
-        		writer.endObject();
-        		outputWriter.write("\n");
-        	}
-    	} finally {
-        	outputWriter.close();
-    	}
-    }
-    
-    private void addMatch(Listing listing, Set<Product> products) {
-    	for (Product product: products) {
-    		Set<Listing> listings = productToListings.get(product);
-    		if (listings == null) {
-    			listings = new HashSet<Listing>();
-    			productToListings.put(product, listings);
-    		}
-    		listings.add(listing);
+    private void outputProductMatches() throws IOException {
+    	if (resultStore != null) {
+    		resultStore.replay(matcher, aggregator, options.delta);
     	}
+    	aggregator.writeTo(entryWriter);
     }
 
     private static void usage() {
-        System.out.println("java codingchallenge.SortableChallenge <products> <listings>");
+        System.out.println("java codingchallenge.SortableChallenge [options] <products> <listings>...\n"
+                + "java codingchallenge.SortableChallenge --serve PORT [options] <products>\n"
+                + "java codingchallenge.SortableChallenge --watch-dir DIR [options] <products>");
+        System.out.print(Options.describe());
         System.exit(0);
     }
     
@@ -174,6 +690,21 @@ public class SortableChallenge {
     	return obj.has(key) ? obj.getString(key) : null;
     }
     
+	/**
+	 * A batch of listings, and the products they matched
+	 */
+	private static class MatchedBatch {
+		private LineBatch			lineBatch;
+		private ProductMatcher		matcher;
+		private MatchResult			matches;
+		
+		/**
+		 * UTF-8 line of each listing with at least one match, null for the others.
+		 * Not set if the aggregator only keeps file offsets.
+		 */
+		private byte[][]			lineBytes;
+	}
+	
 	private static class BadInputException extends RuntimeException {
 		private static final long serialVersionUID = 1L;
 		public BadInputException(String s) {
@@ -0,0 +1,461 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Aggregates matches within a memory budget, for inputs whose matches do not fit
+ * in memory.  Matches are buffered as (product rank, listing, catalog version)
+ * records; when the buffer reaches the budget it is sorted by product and written
+ * to a run file.  On output the runs are merged, streaming each product's listings
+ * from all the runs in turn.  Products are ranked by name, so the same product
+ * from two versions of the catalog gets one entry.
+ * <p>
+ * At most {@link #MAX_MERGE_FAN_IN} runs are read at once, each through a buffer of
+ * its own.  With more runs than that, groups of consecutive runs are first merged
+ * into longer intermediate runs on disk, pass after pass, until the remaining runs
+ * can be merged straight into the output.
+ * <p>
+ * A product's rank is the order of its first matching listing, so merging by rank
+ * outputs the products in the same order as {@link MemoryMatchAggregator}.  Each run
+ * is sorted stably, and ties between runs go to the earlier run, so each product's
+ * listings also keep their input order.
+ * <p>
+ * Records hold the listing's line, or only its file offset and length when given a
+ * {@link FileListingStore} to read the lines back from.
+ * 
+ * @author Shannon
+ *
+ */
+class SpillingMatchAggregator implements MatchAggregator {
+    /**
+     * Estimated memory used per buffered listing, on top of its line, and per record
+     */
+    private static final int    LISTING_OVERHEAD = 12;
+    private static final int    RECORD_OVERHEAD = 24;
+
+    /**
+     * The most runs merged at once, which bounds the open files and read buffers
+     */
+    static final int            MAX_MERGE_FAN_IN = 64;
+    private static final int    RUN_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Merge order: by product rank, then by run order, which keeps listings in input order
+     */
+    private static final Comparator<Run> RUN_ORDER = new Comparator<Run>() {
+        @Override
+        public int compare(Run a, Run b) {
+            if (a.rank != b.rank) {
+                return a.rank < b.rank ? -1 : 1;
+            }
+            return a.order < b.order ? -1 : (a.order > b.order ? 1 : 0);
+        }
+    };
+
+    private long                memoryBudget;
+    private File                directory;
+    private FileListingStore    fileStore;
+
+    private Map<String,Integer>     productRanks = new HashMap<String,Integer>();
+    private List<Product>           rankedProducts = new ArrayList<Product>();
+
+    // The buffer: listings by id, and a (rank, listing id, catalog version) record per match
+    private ListingArena        lines;
+    private LongList            lineOffsets;
+    private IntList             lineLengths;
+    private IntList             recordRanks;
+    private IntList             recordListings;
+    private LongList            recordVersions;
+    private long                bufferedBytes;
+
+    private List<File>          runFiles = new ArrayList<File>();
+    private int                 spilledRuns;
+    private long                spilledBytes;
+    private int                 mergePasses;
+
+    /**
+     * Spilling match aggregator
+     * @param memoryBudget about how many bytes of matches to buffer before spilling them
+     * @param directory where run files are written
+     * @param fileStore where to read listing lines back from, or null to spill the lines themselves
+     */
+    SpillingMatchAggregator(long memoryBudget, File directory, FileListingStore fileStore) {
+        this.memoryBudget = memoryBudget;
+        this.directory = directory;
+        this.fileStore = fileStore;
+        clearBuffer();
+    }
+
+    @Override
+    public boolean needsLineBytes() {
+        return fileStore == null;
+    }
+
+    @Override
+    public int addListing(byte[] line, long offset, int length) throws IOException {
+        if (bufferedBytes >= memoryBudget) {
+            spill();
+        }
+        if (fileStore == null) {
+            bufferedBytes += line.length + LISTING_OVERHEAD;
+            return lines.append(line);
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("Listing offset unknown");
+        }
+        bufferedBytes += LISTING_OVERHEAD;
+        lineOffsets.add(offset);
+        lineLengths.add(length);
+        return lineOffsets.size() - 1;
+    }
+
+    @Override
+    public void addMatch(int listingId, Product product, long catalogVersion) {
+        Integer rank = productRanks.get(product.getName());
+        if (rank == null) {
+            rank = rankedProducts.size();
+            productRanks.put(product.getName(), rank);
+            rankedProducts.add(product);
+        }
+        recordRanks.add(rank);
+        recordListings.add(listingId);
+        recordVersions.add(catalogVersion);
+        bufferedBytes += RECORD_OVERHEAD;
+    }
+
+    /**
+     * Sorts the buffered records by product rank and writes them to a new run file
+     */
+    private void spill() throws IOException {
+        File runFile = createRunFile();
+        runFiles.add(runFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), RUN_BUFFER_SIZE));
+        try {
+            long[] keys = sortedKeys();
+            for (int i = 0; i < keys.length; i++) {
+                int listingId = recordListings.get((int) keys[i]);
+                out.writeInt((int) (keys[i] >>> 32));
+                out.writeLong(recordVersions.get((int) keys[i]));
+                if (fileStore == null) {
+                    out.writeInt(lines.length(listingId));
+                    lines.writeTo(listingId, out);
+                } else {
+                    out.writeLong(lineOffsets.get(listingId));
+                    out.writeInt(lineLengths.get(listingId));
+                }
+            }
+            out.writeInt(-1);
+        } finally {
+            out.close();
+        }
+        spilledRuns++;
+        spilledBytes += runFile.length();
+        clearBuffer();
+    }
+
+    private File createRunFile() throws IOException {
+        File runFile = File.createTempFile("sortable-run", ".bin", directory);
+        runFile.deleteOnExit();
+        return runFile;
+    }
+
+    /**
+     * Merges the run files in groups of {@link #MAX_MERGE_FAN_IN} consecutive runs,
+     * pass after pass, until they can be merged with the buffer in one pass
+     */
+    private void mergeRunFiles() throws IOException {
+        while (runFiles.size() >= MAX_MERGE_FAN_IN) {
+            List<File> merged = new ArrayList<File>();
+            for (int i = 0; i < runFiles.size(); i += MAX_MERGE_FAN_IN) {
+                List<File> group = runFiles.subList(i, Math.min(i + MAX_MERGE_FAN_IN, runFiles.size()));
+                merged.add(group.size() > 1 ? mergeGroup(group) : group.get(0));
+            }
+            runFiles = merged;
+            mergePasses++;
+        }
+    }
+
+    /**
+     * Merges consecutive run files into a new run file, deleting them
+     * @return the new run file
+     */
+    private File mergeGroup(List<File> group) throws IOException {
+        File runFile = createRunFile();
+        PriorityQueue<Run> queue = new PriorityQueue<Run>(group.size(), RUN_ORDER);
+        List<Run> runs = new ArrayList<Run>();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), RUN_BUFFER_SIZE));
+            try {
+                for (int i = 0; i < group.size(); i++) {
+                    FileRun run = new FileRun(i, group.get(i));
+                    runs.add(run);
+                    if (run.next()) {
+                        queue.add(run);
+                    }
+                }
+                while (!queue.isEmpty()) {
+                    FileRun run = (FileRun) queue.poll();
+                    run.writeRecord(out);
+                    if (run.next()) {
+                        queue.add(run);
+                    }
+                }
+                out.writeInt(-1);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            runFile.delete();
+            throw e;
+        } finally {
+            for (Run run: runs) {
+                run.close();
+            }
+        }
+        for (File merged: group) {
+            merged.delete();
+        }
+        return runFile;
+    }
+
+    /**
+     * @return the buffered records as (rank, record index) keys, sorted by rank and then index
+     */
+    private long[] sortedKeys() {
+        long[] keys = new long[recordRanks.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ((long) recordRanks.get(i) << 32) | i;
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    private void clearBuffer() {
+        lines = new ListingArena();
+        lineOffsets = new LongList(1024);
+        lineLengths = new IntList(1024);
+        recordRanks = new IntList(1024);
+        recordListings = new IntList(1024);
+        recordVersions = new LongList(1024);
+        bufferedBytes = 0;
+    }
+
+    @Override
+    public void writeTo(EntryWriter writer) throws IOException {
+        mergeRunFiles();
+        PriorityQueue<Run> queue = new PriorityQueue<Run>(runFiles.size() + 1, RUN_ORDER);
+        List<Run> runs = new ArrayList<Run>();
+        try {
+            for (int i = 0; i < runFiles.size(); i++) {
+                runs.add(new FileRun(i, runFiles.get(i)));
+            }
+            // What is still buffered needs no spilling: it is merged as the last run
+            runs.add(new BufferRun(runFiles.size()));
+            for (Run run: runs) {
+                if (run.next()) {
+                    queue.add(run);
+                }
+            }
+            int entryRank = -1;
+            while (!queue.isEmpty()) {
+                Run run = queue.poll();
+                if (run.rank != entryRank) {
+                    if (entryRank >= 0) {
+                        writer.endEntry();
+                    }
+                    entryRank = run.rank;
+                    writer.beginEntry(rankedProducts.get(entryRank));
+                }
+                run.writeListing(writer.nextListing(run.catalogVersion));
+                if (run.next()) {
+                    queue.add(run);
+                }
+            }
+            if (entryRank >= 0) {
+                writer.endEntry();
+            }
+        } finally {
+            for (Run run: runs) {
+                run.close();
+            }
+        }
+        deleteRuns();
+        clearBuffer();
+        productRanks.clear();
+        rankedProducts.clear();
+    }
+
+    private void deleteRuns() {
+        for (File runFile: runFiles) {
+            runFile.delete();
+        }
+        runFiles.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        deleteRuns();
+        clearBuffer();
+        if (fileStore != null) {
+            fileStore.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d match runs spilled to disk (%.1f MB), %d intermediate merge passes", spilledRuns,
+                spilledBytes / (1024.0 * 1024.0), mergePasses);
+    }
+
+    /**
+     * A sorted run of records, read one record at a time
+     */
+    private abstract class Run {
+        /**
+         * Creation order of the run, which breaks ties between runs
+         */
+        int     order;
+
+        /**
+         * Product rank of the current record
+         */
+        int     rank;
+
+        /**
+         * Catalog version of the current record, 0 if not tracked
+         */
+        long    catalogVersion;
+
+        Run(int order) {
+            this.order = order;
+        }
+
+        /**
+         * Moves to the next record
+         * @return false if there are no more records
+         */
+        abstract boolean next() throws IOException;
+
+        /**
+         * Writes the current record's listing line
+         */
+        abstract void writeListing(OutputStream out) throws IOException;
+
+        void close() throws IOException {
+        }
+    }
+
+    private class FileRun extends Run {
+        private DataInputStream     in;
+        private byte[]              line = new byte[1024];
+        private long                lineOffset;
+        private int                 lineLength;
+
+        FileRun(int order, File runFile) throws IOException {
+            super(order);
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), RUN_BUFFER_SIZE));
+        }
+
+        @Override
+        boolean next() throws IOException {
+            rank = in.readInt();
+            if (rank < 0) {
+                return false;
+            }
+            catalogVersion = in.readLong();
+            if (fileStore == null) {
+                lineLength = in.readInt();
+                if (line.length < lineLength) {
+                    line = new byte[Math.max(lineLength, line.length * 2)];
+                }
+                in.readFully(line, 0, lineLength);
+            } else {
+                lineOffset = in.readLong();
+                lineLength = in.readInt();
+            }
+            return true;
+        }
+
+        @Override
+        void writeListing(OutputStream out) throws IOException {
+            if (fileStore == null) {
+                out.write(line, 0, lineLength);
+            } else {
+                fileStore.writeRange(lineOffset, lineLength, out);
+            }
+        }
+
+        /**
+         * Writes the current record to another run
+         */
+        void writeRecord(DataOutputStream out) throws IOException {
+            out.writeInt(rank);
+            out.writeLong(catalogVersion);
+            if (fileStore == null) {
+                out.writeInt(lineLength);
+                out.write(line, 0, lineLength);
+            } else {
+                out.writeLong(lineOffset);
+                out.writeInt(lineLength);
+            }
+        }
+
+        @Override
+        void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private class BufferRun extends Run {
+        private long[]  keys = sortedKeys();
+        private int     position = -1;
+        private int     listingId;
+
+        BufferRun(int order) {
+            super(order);
+        }
+
+        @Override
+        boolean next() {
+            if (++position == keys.length) {
+                return false;
+            }
+            rank = (int) (keys[position] >>> 32);
+            listingId = recordListings.get((int) keys[position]);
+            catalogVersion = recordVersions.get((int) keys[position]);
+            return true;
+        }
+
+        @Override
+        void writeListing(OutputStream out) throws IOException {
+            if (fileStore == null) {
+                lines.writeTo(listingId, out);
+            } else {
+                fileStore.writeRange(lineOffsets.get(listingId), lineLengths.get(listingId), out);
+            }
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Matches listings files as they are dropped into a spool directory, against a
+ * catalog loaded once and kept warm.
+ * <p>
+ * Each new file is claimed by renaming it into the <code>processing</code>
+ * subdirectory, under its name prefixed with a claim sequence number, and matched a
+ * batch at a time.  Its matches are appended to a {@link RollingOutput} as one
+ * NDJSON line per listing, as {@link MatchDaemon} writes them, so each line gives
+ * the catalog version that matched it when --watch-products reloads the catalog
+ * between batches.  The file is then moved to the done directory once its matches
+ * are committed.
+ * Files that cannot be read or matched are moved to the <code>failed</code>
+ * subdirectory instead, with their partial matches rolled back.  Files left in
+ * <code>processing</code> by an earlier run are finished first, so every file's
+ * matches are output once.  The output commits each file under its claimed name,
+ * which no later file shares, so a file whose name was used before is never taken
+ * for one already output.
+ * <p>
+ * Files should be written elsewhere and moved into the spool directory when
+ * complete; files whose names start with "." or end in ".tmp" or ".part" are
+ * taken to be still being written, and left alone.  One watcher runs per spool
+ * directory.
+ * 
+ * @author Shannon
+ *
+ */
+class SpoolWatcher {
+    private static final Charset    UTF_8 = Charset.forName("UTF-8");
+    private static final int        BATCH_SIZE = 1000;
+
+    /**
+     * How often the spool directory is rescanned without any event, so files
+     * renamed from their temporary names are not missed
+     */
+    private static final long       RESCAN_MILLIS = 5000;
+
+    private MatcherSource           matcherSource;
+    private File                    spoolDirectory;
+    private File                    processingDirectory;
+    private File                    doneDirectory;
+    private File                    failedDirectory;
+    private RollingOutput           output;
+    private long                    claimSequence;
+    private WatchService            watchService;
+    private volatile boolean        stopped;
+    private CountDownLatch          finished = new CountDownLatch(1);
+
+    /**
+     * Spool directory watcher
+     * @param matcherSource supplies the matcher for each batch
+     * @param spoolDirectory where listings files arrive
+     * @param doneDirectory where files are moved once matched
+     * @param output where matches are written
+     */
+    SpoolWatcher(MatcherSource matcherSource, File spoolDirectory, File doneDirectory, RollingOutput output) {
+        this.matcherSource = matcherSource;
+        this.spoolDirectory = spoolDirectory;
+        this.processingDirectory = new File(spoolDirectory, "processing");
+        this.doneDirectory = doneDirectory;
+        this.failedDirectory = new File(spoolDirectory, "failed");
+        this.output = output;
+    }
+
+    /**
+     * Matches files as they arrive, until stopped
+     * @throws IOException if the spool directory cannot be watched, or output fails
+     */
+    void run() throws IOException {
+        try {
+            for (File directory: new File[] { processingDirectory, doneDirectory, failedDirectory }) {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Cannot create " + directory);
+                }
+            }
+            watchService = spoolDirectory.toPath().getFileSystem().newWatchService();
+            spoolDirectory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+            recover();
+            while (!stopped) {
+                for (File file: list(spoolDirectory)) {
+                    if (stopped) {
+                        break;
+                    }
+                    File claimed = claim(file);
+                    if (claimed != null) {
+                        process(claimed);
+                    }
+                }
+                WatchKey key = watchService.poll(RESCAN_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    // Any event, overflow included, just prompts a rescan
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Stopped
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            try {
+                if (watchService != null) {
+                    watchService.close();
+                }
+            } finally {
+                finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * Stops watching once the file being matched is done, and waits for that
+     */
+    void stop() {
+        stopped = true;
+        try {
+            if (watchService != null) {
+                watchService.close();
+            }
+            finished.await();
+        } catch (IOException e) {
+            // Stopping anyway
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Finishes the files claimed by an earlier run
+     */
+    private void recover() throws IOException {
+        List<File> claimedFiles = list(processingDirectory);
+        claimSequence = claimSequence(output.getCommittedName());
+        for (File file: claimedFiles) {
+            claimSequence = Math.max(claimSequence, claimSequence(file.getName()));
+        }
+        for (File file: claimedFiles) {
+            if (file.getName().equals(output.getCommittedName())) {
+                // Matches output, but the run stopped before moving it on
+                moveTo(file, doneDirectory);
+            } else {
+                process(file);
+            }
+        }
+    }
+
+    private List<File> list(File directory) throws IOException {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            throw new IOException("Cannot list " + directory);
+        }
+        List<File> files = new ArrayList<File>();
+        for (File child: children) {
+            String name = child.getName();
+            if (child.isFile() && !name.startsWith(".") && !name.endsWith(".tmp") && !name.endsWith(".part")) {
+                files.add(child);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Claims a file by moving it into the processing directory, under its name
+     * prefixed with the next claim sequence number
+     * @return the claimed file, or null if it went before it could be claimed
+     */
+    private File claim(File file) throws IOException {
+        File claimed = new File(processingDirectory, String.format("%08d-%s", claimSequence + 1, file.getName()));
+        try {
+            Files.move(file.toPath(), claimed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        claimSequence++;
+        return claimed;
+    }
+
+    /**
+     * @return the claim sequence number a claimed file's name starts with, or 0 if none
+     */
+    private static long claimSequence(String claimedName) {
+        int dash = claimedName != null ? claimedName.indexOf('-') : -1;
+        if (dash <= 0) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(claimedName.substring(0, dash));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the name a file had before it was claimed
+     */
+    private static String originalName(File claimed) {
+        String name = claimed.getName();
+        return claimSequence(name) > 0 ? name.substring(name.indexOf('-') + 1) : name;
+    }
+
+    /**
+     * Matches a file, and moves it on.  Only failures to read or match the file are
+     * its own fault, sending it to the failed directory; output failures propagate,
+     * leaving the file in the processing directory to be retried on restart.
+     */
+    private void process(File file) throws IOException {
+        long startNanos = System.nanoTime();
+        long listingCount = 0;
+        BufferedReader in;
+        try {
+            in = new BufferedReader(new InputStreamReader(CompressedInput.open(file), UTF_8));
+        } catch (IOException e) {
+            fail(file, "read", e);
+            return;
+        }
+        try {
+            List<String> batch = new ArrayList<String>(BATCH_SIZE);
+            while (true) {
+                String line;
+                try {
+                    line = in.readLine();
+                } catch (IOException e) {
+                    fail(file, "read", e);
+                    return;
+                }
+                if (line == null) {
+                    break;
+                }
+                line = line.trim();
+                if (line.length() == 0) {
+                    continue;
+                }
+                batch.add(line);
+                if (batch.size() == BATCH_SIZE) {
+                    MatchDaemon.writeMatches(batch, matcherSource.getMatcher(), output.getSink());
+                    listingCount += batch.size();
+                    batch.clear();
+                }
+            }
+            MatchDaemon.writeMatches(batch, matcherSource.getMatcher(), output.getSink());
+            listingCount += batch.size();
+        } catch (RuntimeException e) {
+            // A file that cannot be matched must not hold up those after it, nor restarts
+            fail(file, "match", e);
+            return;
+        } finally {
+            in.close();
+        }
+        File outputFile = output.getFile();
+        output.commit(file.getName());
+        moveTo(file, doneDirectory);
+        System.err.println(String.format("Matched %s: %d listings in %.1f s, output to %s", originalName(file),
+                listingCount, (System.nanoTime() - startNanos) / 1e9, outputFile));
+    }
+
+    /**
+     * Rolls back a file's partial matches, and moves it to the failed directory
+     */
+    private void fail(File file, String action, Exception e) throws IOException {
+        output.rollback();
+        moveTo(file, failedDirectory);
+        System.err.println("Failed to " + action + " " + originalName(file) + ", moved to " + failedDirectory + ": " + e);
+    }
+
+    /**
+     * Moves a claimed file into a directory under its original name, numbering it
+     * if the name is taken
+     */
+    private static void moveTo(File file, File directory) throws IOException {
+        String name = originalName(file);
+        File target = new File(directory, name);
+        for (int i = 1; target.exists(); i++) {
+            target = new File(directory, name + "." + i);
+        }
+        Files.move(file.toPath(), target.toPath());
+    }
+}
@@ -36,4 +36,11 @@ public interface TextIndex {
 	 * @return the set of best matching document ids
 	 */
     Set<Integer> bestMatches(String query);
+
+	/**
+	 * Returns the ids of the set of documents that best match an already tokenized query
+	 * @param queryTokens the query tokens, as produced by the index's tokenizer
+	 * @return the set of best matching document ids
+	 */
+    Set<Integer> bestMatches(Iterable<String> queryTokens);
 }
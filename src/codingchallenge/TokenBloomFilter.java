@@ -0,0 +1,102 @@
+package codingchallenge;
+
+/*
+Copyright (c) 2012 Shannon White
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.util.*;
+
+/**
+ * Bloom filter over a set of tokens.  Used to cheaply rule out queries sharing
+ * no token with an index: a token reported absent is certainly not in the set,
+ * while a token reported present may be a false positive.
+ * 
+ * @author Shannon
+ *
+ */
+public class TokenBloomFilter {
+    private static final int    BITS_PER_TOKEN  = 10;
+    private static final int    HASH_COUNT      = 7;
+
+    private long[]              bits;
+    private int                 bitCount;
+
+    /**
+     * Bloom filter holding the given tokens, sized for about a 1% false positive rate
+     * @param tokens the tokens to add
+     */
+    public TokenBloomFilter(Collection<String> tokens) {
+        bitCount = Math.max(64, tokens.size() * BITS_PER_TOKEN);
+        bits = new long[(bitCount + 63) >>> 6];
+        bitCount = bits.length << 6;
+        for (String token: tokens) {
+            long hash = hash(token);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < HASH_COUNT; i++) {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    /**
+     * @param token the token to test
+     * @return false if the token is certainly not in the filter
+     */
+    public boolean mightContain(String token) {
+        long hash = hash(token);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param tokens the tokens to test
+     * @return false if none of the tokens can be in the filter
+     */
+    public boolean mightContainAny(Iterable<String> tokens) {
+        for (String token: tokens) {
+            if (mightContain(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 64 bit FNV-1a hash, split into the two hashes combined for each probe
+     */
+    private static long hash(String token) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); i++) {
+            hash ^= token.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash ^ (hash >>> 29);
+    }
+}